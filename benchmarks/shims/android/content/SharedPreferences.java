@@ -0,0 +1,20 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package android.content;
+
+/** Host stand-in for the parts of the framework interface the effect classes use. */
+public interface SharedPreferences {
+    String getString(String key, String defValue);
+
+    Editor edit();
+
+    interface Editor {
+        Editor putString(String key, String value);
+
+        void apply();
+    }
+}
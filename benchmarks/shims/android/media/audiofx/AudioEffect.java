@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package android.media.audiofx;
+
+import java.util.UUID;
+
+/**
+ * Host stand-in for the framework class, for host builds. There is no effect
+ * engine behind it: subclasses override the parameter calls.
+ */
+public class AudioEffect {
+    public static final int SUCCESS = 0;
+    public static final int ERROR = -1;
+    public static final int ALREADY_EXISTS = -2;
+    public static final int ERROR_NO_INIT = -3;
+    public static final int ERROR_BAD_VALUE = -4;
+    public static final int ERROR_INVALID_OPERATION = -5;
+    public static final int ERROR_NO_MEMORY = -6;
+    public static final int ERROR_DEAD_OBJECT = -7;
+
+    public AudioEffect(UUID type, UUID uuid, int priority, int audioSession) {
+    }
+
+    public boolean hasControl() {
+        return true;
+    }
+
+    public int setParameter(byte[] param, byte[] value) {
+        return ERROR_NO_INIT;
+    }
+
+    public int getParameter(byte[] param, byte[] value) {
+        return ERROR_NO_INIT;
+    }
+
+    public void release() {
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package android.os;
+
+/**
+ * Host stand-in for the framework class, for the benchmarks. There is no looper,
+ * so posted work runs right away, as it would on an otherwise idle thread.
+ * Unlike the framework class it can be subclassed to hold posts back.
+ */
+public class Handler {
+    public boolean post(Runnable r) {
+        r.run();
+        return true;
+    }
+
+    public boolean postDelayed(Runnable r, long delayMillis) {
+        return post(r);
+    }
+
+    public boolean hasCallbacks(Runnable r) {
+        return false;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package android.util;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Host stand-in for the framework class, for the benchmarks. Like the real one
+ * it writes a new file, syncs it and renames it over the old one.
+ */
+public class AtomicFile {
+    private final File mBaseName;
+    private final File mNewName;
+
+    public AtomicFile(File baseName) {
+        mBaseName = baseName;
+        mNewName = new File(baseName.getPath() + ".new");
+    }
+
+    public byte[] readFully() throws IOException {
+        if (!mBaseName.exists()) {
+            throw new FileNotFoundException(mBaseName.getPath());
+        }
+        return Files.readAllBytes(mBaseName.toPath());
+    }
+
+    public FileOutputStream startWrite() throws IOException {
+        return new FileOutputStream(mNewName);
+    }
+
+    public void finishWrite(FileOutputStream str) {
+        try {
+            str.getFD().sync();
+            str.close();
+            if (!mNewName.renameTo(mBaseName)) {
+                Log.e("AtomicFile", "Failed to rename " + mNewName + " to " + mBaseName);
+            }
+        } catch (IOException e) {
+            Log.e("AtomicFile", "Failed to finish write", e);
+        }
+    }
+
+    public void failWrite(FileOutputStream str) {
+        try {
+            str.close();
+        } catch (IOException e) {
+            // Deleted below either way
+        }
+        mNewName.delete();
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package android.util;
+
+/**
+ * Host stand-in for the framework class, for the benchmarks. Debug logging is
+ * always off, warnings and errors go to stderr.
+ */
+public final class Log {
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+
+    private Log() {}
+
+    public static boolean isLoggable(String tag, int level) {
+        return level > DEBUG;
+    }
+
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+
+    public static int i(String tag, String msg) {
+        return 0;
+    }
+
+    public static int w(String tag, String msg) {
+        return print("W", tag, msg, null);
+    }
+
+    public static int e(String tag, String msg) {
+        return print("E", tag, msg, null);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return print("E", tag, msg, tr);
+    }
+
+    private static int print(String level, String tag, String msg, Throwable tr) {
+        System.err.println(level + "/" + tag + ": " + msg);
+        if (tr != null) {
+            tr.printStackTrace();
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.Locale;
+
+import android.os.Handler;
+
+import co.aospa.dtsultra.nubia.DtsConstants.AudioRoute;
+import co.aospa.dtsultra.nubia.DtsConstants.DtsSystemComm;
+
+/**
+ * Host-side benchmarks of the DTS control path, running the real effect classes
+ * against {@link FakeEffectBackend}. Reports throughput, allocation rate and the
+ * effect calls that got through per scenario, and how long the journal write
+ * left pending at the end took, which the app does on another thread.
+ *
+ * Usage: DtsUltraBench [warmup ms] [measurement ms]
+ */
+public final class ControlPathBenchmark {
+    private static final long DEFAULT_WARMUP_MS = 2000;
+    private static final long DEFAULT_MEASURE_MS = 5000;
+    /* Check the clock every this many operations */
+    private static final int BATCH = 1024;
+
+    /* android.media.AudioDeviceInfo.TYPE_* */
+    private static final int TYPE_BUILTIN_SPEAKER = 2;
+    private static final int TYPE_WIRED_HEADPHONES = 4;
+    private static final int TYPE_BLUETOOTH_A2DP = 8;
+    private static final int TYPE_USB_HEADSET = 22;
+
+    private static final int[] SAVED_EQ = {6, 6, 3, 2, 2, 3, 3, 3, 4, 5};
+
+    /* dtsultra_eq_slider_min/max */
+    private static final GainTable GAIN_TABLE = new GainTable(-12, 12);
+
+    private static final File JOURNAL_DIR = createJournalDir();
+
+    private interface Scenario {
+        String name();
+
+        /** Runs one operation, returning something derived from it to keep it alive. */
+        long run(long op);
+    }
+
+    private static volatile long sSink;
+
+    private ControlPathBenchmark() {}
+
+    public static void main(String[] args) {
+        final long warmupMs = args.length > 0 ? Long.parseLong(args[0]) : DEFAULT_WARMUP_MS;
+        final long measureMs = args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_MEASURE_MS;
+
+        System.out.println(String.format(Locale.ROOT, "%-16s %14s %10s %10s %12s %12s",
+                "scenario", "ops/s", "ns/op", "B/op", "effect/op", "journal us"));
+        for (Scenario scenario : new Scenario[] {
+                new GainConversion(), new GainLookup(), new SliderDrag(),
+                new SliderHold(), new DeviceSwitch(), new PlaybackEvent(),
+                new BootRestore()}) {
+            run(scenario, warmupMs, measureMs);
+        }
+    }
+
+    private static void run(Scenario scenario, long warmupMs, long measureMs) {
+        measure(scenario, warmupMs, null);
+        EffectScenario effect = scenario instanceof EffectScenario
+                ? (EffectScenario) scenario : null;
+        FakeEffectBackend backend = effect != null ? effect.mBackend : null;
+        long callsBefore = backend != null ? backend.getSetCount() + backend.getGetCount() : 0;
+        long[] result = new long[3];
+        measure(scenario, measureMs, result);
+        long ops = result[0];
+        long nanos = result[1];
+        long bytes = result[2];
+        long calls = backend != null ? backend.getSetCount() + backend.getGetCount() - callsBefore : 0;
+        /* Out of the measurement, like the app's store thread */
+        long journalNs = effect != null ? effect.mJournalHandler.runPending() : -1;
+
+        System.out.println(String.format(Locale.ROOT, "%-16s %14.0f %10.1f %10s %12.2f %12s",
+                scenario.name(),
+                ops * 1e9 / nanos,
+                (double) nanos / ops,
+                bytes < 0 ? "n/a" : String.format(Locale.ROOT, "%.1f", (double) bytes / ops),
+                (double) calls / ops,
+                journalNs < 0 ? "n/a" : String.format(Locale.ROOT, "%.1f", journalNs / 1e3)));
+    }
+
+    /* Fills result with {operations, elapsed ns, allocated bytes or -1} */
+    private static void measure(Scenario scenario, long durationMs, long[] result) {
+        final long deadline = System.nanoTime() + durationMs * 1_000_000L;
+        final long allocatedBefore = allocatedBytes();
+        final long start = System.nanoTime();
+        long sink = 0;
+        long op = 0;
+        long now;
+        do {
+            for (int i = 0; i < BATCH; i++) {
+                sink += scenario.run(op++);
+            }
+            now = System.nanoTime();
+        } while (now < deadline);
+        final long allocatedAfter = allocatedBytes();
+        sSink = sink;
+
+        if (result != null) {
+            result[0] = op;
+            result[1] = now - start;
+            result[2] = allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore;
+        }
+    }
+
+    private static File createJournalDir() {
+        try {
+            File dir = Files.createTempDirectory("dtsultra-bench").toFile();
+            dir.deleteOnExit();
+            /* Deleted in reverse order, so before the directory */
+            new File(dir, ApplyJournal.FILE_NAME).deleteOnExit();
+            return dir;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long allocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+                && bean.isThreadAllocatedMemorySupported()) {
+            return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /** dB to Eagle gain and back over the slider range. */
+    private static final class GainConversion implements Scenario {
+        @Override
+        public String name() {
+            return "gain-conversion";
+        }
+
+        @Override
+        public long run(long op) {
+            int db = (int) (op % 25) - 12;
+            return DtsGain.toDb(DtsGain.toEagleGain(db));
+        }
+    }
+
+    /** Same as above through the lookup table. */
+    private static final class GainLookup implements Scenario {
+        @Override
+        public String name() {
+            return "gain-lookup";
+        }
+
+        @Override
+        public long run(long op) {
+            int db = (int) (op % 25) - 12;
+            return GAIN_TABLE.toDb(GAIN_TABLE.toEagleGain(db));
+        }
+    }
+
+    /**
+     * The real {@link DtsAudio}, with its parameter calls going to a
+     * {@link FakeEffectBackend} instead of an effect engine.
+     */
+    private static final class HostDtsAudio extends DtsAudio {
+        private final FakeEffectBackend mBackend;
+
+        HostDtsAudio(FakeEffectBackend backend) {
+            super(0, 0);
+            mBackend = backend;
+        }
+
+        @Override
+        public int setParameter(byte[] param, byte[] value) {
+            return mBackend.setParameter(param, value);
+        }
+
+        @Override
+        public int getParameter(byte[] param, byte[] value) {
+            return mBackend.getParameter(param, value);
+        }
+    }
+
+    /**
+     * Holds posted work back until {@link #runPending()}, so the journal's disk
+     * writes, which the app does on its store thread, stay out of the numbers.
+     */
+    private static final class DeferringHandler extends Handler {
+        private Runnable mPending;
+
+        @Override
+        public boolean post(Runnable r) {
+            mPending = r;
+            return true;
+        }
+
+        @Override
+        public boolean postDelayed(Runnable r, long delayMillis) {
+            return post(r);
+        }
+
+        @Override
+        public boolean hasCallbacks(Runnable r) {
+            return mPending == r;
+        }
+
+        /* Runs what was posted, returning how long it took in ns, 0 if nothing */
+        long runPending() {
+            Runnable r = mPending;
+            if (r == null) {
+                return 0;
+            }
+            mPending = null;
+            final long start = System.nanoTime();
+            r.run();
+            return System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Drives the effect classes the way DtsUtils does on the effect thread, through
+     * the same {@link ProfileApplier}. Settings are fixed: music with the custom
+     * preset, converted to Eagle gains here as EqStateStore does in the app.
+     */
+    private abstract static class EffectScenario implements Scenario {
+        final FakeEffectBackend mBackend = new FakeEffectBackend();
+        final DtsAudio mAudio = new HostDtsAudio(mBackend);
+        final DeferringHandler mJournalHandler = new DeferringHandler();
+        final ProfileApplier mApplier =
+                new ProfileApplier(ApplyJournal.load(JOURNAL_DIR, mJournalHandler));
+        final int[] mEagle = new int[DtsConstants.EQ_BAND_COUNT];
+
+        EffectScenario() {
+            mBackend.put(DtsSystemComm.GET_ENABLED, 1);
+            mBackend.put(DtsSystemComm.GET_CONTENT_MODE_V2, DtsConstants.PROFILE_MUSIC);
+        }
+
+        /* DtsUtils.setEq() */
+        int setEq(int route, int[] db) {
+            GAIN_TABLE.toEagleGains(db, mEagle);
+            return mApplier.applyEq(mAudio, route, mEagle);
+        }
+
+        /* DtsUtils.applyDtsOn() */
+        int applyDtsOn(int deviceType, int route, int[] db) {
+            return (mApplier.setDtsOn(mAudio, true) ? 1 : 0)
+                    + setCurrentProfile(deviceType, route, db);
+        }
+
+        /* DtsUtils.setCurrentProfile() and applyProfile() */
+        int setCurrentProfile(int deviceType, int route, int[] db) {
+            final int profile = DtsConstants.PROFILE_MUSIC;
+            final int preset = DtsConstants.PRESET_CUSTOM;
+            if (mApplier.isApplied(mAudio, deviceType, route, profile, preset, db)) {
+                return 0;
+            }
+            GAIN_TABLE.toEagleGains(db, mEagle);
+            DtsAudio.Transaction tx = mApplier.apply(mAudio, deviceType, route, profile, preset,
+                    db, mEagle);
+            return tx.isSuccessful() ? tx.getCount() : -1;
+        }
+    }
+
+    /** One slider tick: update a band, convert the curve and write all bands. */
+    private static final class SliderDrag extends EffectScenario {
+        private final int[] mDb = new int[DtsConstants.EQ_BAND_COUNT];
+
+        @Override
+        public String name() {
+            return "slider-drag";
+        }
+
+        @Override
+        public long run(long op) {
+            mDb[(int) (op % mDb.length)] = (int) (op / mDb.length % 25) - 12;
+            return setEq(AudioRoute.INTERNAL_SPEAKERS.ordinal(), mDb);
+        }
+    }
+
+    /** Slider held still: the same curve again, which the cache drops. */
+    private static final class SliderHold extends EffectScenario {
+        private final int[] mDb = SAVED_EQ.clone();
+
+        @Override
+        public String name() {
+            return "slider-hold";
+        }
+
+        @Override
+        public long run(long op) {
+            return setEq(AudioRoute.INTERNAL_SPEAKERS.ordinal(), mDb);
+        }
+    }
+
+    /** Output change: resolve the route and apply its curve. */
+    private static final class DeviceSwitch extends EffectScenario {
+        private final int[] mTypes = {
+            TYPE_BUILTIN_SPEAKER, TYPE_BLUETOOTH_A2DP, TYPE_WIRED_HEADPHONES, TYPE_USB_HEADSET,
+        };
+        private final RouteTable mRoutes = new RouteTable()
+                .put(AudioRoute.INTERNAL_SPEAKERS, TYPE_BUILTIN_SPEAKER)
+                .put(AudioRoute.LINE_OUT, TYPE_WIRED_HEADPHONES)
+                .put(AudioRoute.BLUETOOTH, TYPE_BLUETOOTH_A2DP)
+                .put(AudioRoute.USB, TYPE_USB_HEADSET);
+        private final int[][] mCurves = new int[AudioRoute.values().length][];
+
+        DeviceSwitch() {
+            for (int route = 0; route < mCurves.length; route++) {
+                mCurves[route] = SAVED_EQ.clone();
+                mCurves[route][route % SAVED_EQ.length]++;
+            }
+        }
+
+        @Override
+        public String name() {
+            return "device-switch";
+        }
+
+        @Override
+        public long run(long op) {
+            int type = mTypes[(int) (op % mTypes.length)];
+            int route = mRoutes.get(type).ordinal();
+            return setCurrentProfile(type, route, mCurves[route]);
+        }
+    }
+
+    /** Playback event that changes nothing, which the fingerprint drops. */
+    private static final class PlaybackEvent extends EffectScenario {
+        @Override
+        public String name() {
+            return "playback-event";
+        }
+
+        @Override
+        public long run(long op) {
+            return setCurrentProfile(TYPE_BUILTIN_SPEAKER, AudioRoute.INTERNAL_SPEAKERS.ordinal(),
+                    SAVED_EQ);
+        }
+    }
+
+    /**
+     * Boot: a fresh effect, the journal replayed, then the full restore that the
+     * cache mostly turns into nothing.
+     */
+    private static final class BootRestore extends EffectScenario {
+        @Override
+        public String name() {
+            return "boot-restore";
+        }
+
+        @Override
+        public long run(long op) {
+            mAudio.invalidateCache();
+            mApplier.invalidate();
+            DtsAudio.Transaction tx = mApplier.replayJournal(mAudio);
+            return (tx != null ? tx.getCount() : 0) + applyDtsOn(TYPE_BUILTIN_SPEAKER,
+                    AudioRoute.INTERNAL_SPEAKERS.ordinal(), SAVED_EQ);
+        }
+    }
+}
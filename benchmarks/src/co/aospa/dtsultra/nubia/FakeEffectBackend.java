@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+import java.nio.ByteOrder;
+
+import android.media.audiofx.AudioEffect;
+
+import co.aospa.dtsultra.nubia.DtsConstants.DtsSystemComm;
+
+/**
+ * In-memory stand-in for the DTS effect. Every write is stored under its command
+ * code and reads return whatever was stored under theirs, without allocating.
+ * Calls return AudioEffect statuses, like the real thing.
+ */
+final class FakeEffectBackend implements EffectBackend {
+    private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+    private final byte[][] mValues = new byte[DtsSystemComm.TUNE_SET_DATA.getNum() + 1][];
+    private final int[] mLengths = new int[mValues.length];
+    private long mSets = 0;
+    private long mGets = 0;
+
+    private static int readInt(byte[] bytes, int offset) {
+        int b0 = bytes[offset] & 0xff;
+        int b1 = bytes[offset + 1] & 0xff;
+        int b2 = bytes[offset + 2] & 0xff;
+        int b3 = bytes[offset + 3] & 0xff;
+        return LITTLE_ENDIAN ? b0 | b1 << 8 | b2 << 16 | b3 << 24
+                : b3 | b2 << 8 | b1 << 16 | b0 << 24;
+    }
+
+    private static void writeInt(byte[] bytes, int value) {
+        for (int i = 0; i < 4; i++) {
+            int shift = LITTLE_ENDIAN ? i * 8 : (3 - i) * 8;
+            bytes[i] = (byte) (value >> shift);
+        }
+    }
+
+    /** Makes reads of the given command return the given value. */
+    public void put(DtsSystemComm param, int value) {
+        byte[] bytes = new byte[4];
+        writeInt(bytes, value);
+        mValues[param.getNum()] = bytes;
+        mLengths[param.getNum()] = 4;
+    }
+
+    @Override
+    public int setParameter(byte[] param, byte[] value) {
+        mSets++;
+        int code = readInt(param, 0);
+        if (code < 0 || code >= mValues.length) {
+            return AudioEffect.ERROR_BAD_VALUE;
+        }
+        byte[] stored = mValues[code];
+        if (stored == null || stored.length < value.length) {
+            stored = new byte[value.length];
+            mValues[code] = stored;
+        }
+        System.arraycopy(value, 0, stored, 0, value.length);
+        mLengths[code] = value.length;
+        return AudioEffect.SUCCESS;
+    }
+
+    @Override
+    public int getParameter(byte[] param, byte[] value) {
+        mGets++;
+        int code = readInt(param, 0);
+        if (code < 0 || code >= mValues.length || mValues[code] == null) {
+            return AudioEffect.ERROR_BAD_VALUE;
+        }
+        int length = Math.min(mLengths[code], value.length);
+        System.arraycopy(mValues[code], 0, value, 0, length);
+        return length;
+    }
+
+    public long getSetCount() {
+        return mSets;
+    }
+
+    public long getGetCount() {
+        return mGets;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import co.aospa.dtsultra.nubia.DtsConstants.DtsSystemComm;
+import co.aospa.dtsultra.nubia.TrafficRecorder.Record;
+
+/**
+ * Replays a trace saved by {@link TrafficRecorder} against {@link FakeEffectBackend}
+ * through the current {@link DtsParamCodec}. Prints what the trace contains, how
+ * long the calls took on the device and how fast the host gets through them.
+ *
+ * Usage: DtsUltraReplay trace [iterations]
+ *
+ * Traces are pulled from a device recording with log.tag.DtsTraffic=VERBOSE:
+ * <pre>
+ *   adb shell dumpsys activity service co.aospa.dtsultra.nubia/.DtsTileService traffic
+ *   adb pull /data/user/0/co.aospa.dtsultra.nubia/files/dtsultra_traffic.bin
+ * </pre>
+ */
+public final class TrafficReplayer {
+    private static final int DEFAULT_ITERATIONS = 1000;
+
+    private static volatile long sSink;
+
+    private TrafficReplayer() {}
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: DtsUltraReplay trace [iterations]");
+            System.exit(1);
+        }
+        final int iterations = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ITERATIONS;
+        final List<Record> records;
+        try (InputStream in = new FileInputStream(args[0])) {
+            records = TrafficRecorder.read(in);
+        }
+        if (records.isEmpty()) {
+            System.out.println("Empty trace");
+            return;
+        }
+        summarize(records);
+        replay(records, iterations);
+    }
+
+    /* Per command counts, errors, redundant writes and device latency */
+    private static void summarize(List<Record> records) {
+        final Map<DtsSystemComm, LatencyHistogram> latency = new EnumMap<>(DtsSystemComm.class);
+        final Map<DtsSystemComm, int[]> counts = new EnumMap<>(DtsSystemComm.class);
+        final Map<DtsSystemComm, int[]> lastWrite = new EnumMap<>(DtsSystemComm.class);
+        for (Record record : records) {
+            latency.computeIfAbsent(record.command, c -> new LatencyHistogram(c.name()))
+                    .record(record.durationNs);
+            /* {calls, errors, writes identical to the previous one} */
+            int[] count = counts.computeIfAbsent(record.command, c -> new int[3]);
+            count[0]++;
+            if (record.ret < 0) {
+                count[1]++;
+            }
+            if (!record.get) {
+                if (Arrays.equals(lastWrite.get(record.command), record.payload)) {
+                    count[2]++;
+                }
+                lastWrite.put(record.command, record.payload);
+            }
+        }
+
+        final long spanNs = records.get(records.size() - 1).startNs - records.get(0).startNs;
+        System.out.println(String.format(Locale.ROOT, "%d calls over %.1f ms",
+                records.size(), spanNs / 1e6));
+        System.out.println(String.format(Locale.ROOT, "%-28s %8s %8s %10s  %s",
+                "command", "calls", "errors", "redundant", "device latency"));
+        for (Map.Entry<DtsSystemComm, int[]> entry : counts.entrySet()) {
+            int[] count = entry.getValue();
+            System.out.println(String.format(Locale.ROOT, "%-28s %8d %8d %10d  %s",
+                    entry.getKey(), count[0], count[1], count[2], latency.get(entry.getKey())));
+        }
+    }
+
+    private static void replay(List<Record> records, int iterations) {
+        final FakeEffectBackend backend = new FakeEffectBackend();
+        backend.put(DtsSystemComm.GET_ENABLED, 1);
+        backend.put(DtsSystemComm.GET_CONTENT_MODE_V2, DtsConstants.PROFILE_MUSIC);
+        final DtsParamCodec codec = new DtsParamCodec();
+        final byte[] result = new byte[TrafficRecorder.MAX_PAYLOAD * 4];
+
+        /* Warm up with a tenth of the iterations, at least one */
+        long sink = 0;
+        for (int i = 0; i < Math.max(1, iterations / 10); i++) {
+            sink += replayOnce(records, backend, codec, result);
+        }
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += replayOnce(records, backend, codec, result);
+        }
+        final long nanos = System.nanoTime() - start;
+        sSink = sink;
+
+        long deviceNs = 0;
+        for (Record record : records) {
+            deviceNs += record.durationNs;
+        }
+        final long calls = (long) records.size() * iterations;
+        System.out.println(String.format(Locale.ROOT,
+                "replay: %d iterations, %.0f calls/s, %.1f ns/call on host vs %.1f ns/call on device",
+                iterations, calls * 1e9 / nanos, (double) nanos / calls,
+                (double) deviceNs / records.size()));
+    }
+
+    private static long replayOnce(List<Record> records, FakeEffectBackend backend,
+            DtsParamCodec codec, byte[] result) {
+        long sink = 0;
+        for (int i = 0; i < records.size(); i++) {
+            Record record = records.get(i);
+            if (record.get) {
+                sink += codec.get(backend, record.command,
+                        record.payload.length > 0 ? record.payload : null, result);
+            } else {
+                ByteBuffer value = codec.value(record.payload.length);
+                for (int v : record.payload) {
+                    value.putInt(v);
+                }
+                sink += codec.set(backend, record.command, value);
+            }
+        }
+        return sink;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import android.os.Handler;
+import android.util.AtomicFile;
+import android.util.Log;
+
+/**
+ * What was last successfully written to the effect, persisted so it can be
+ * replayed in a single transaction at boot, before the route is even known.
+ *
+ * File layout, big endian:
+ * <pre>
+ *   int magic, int version
+ *   byte enabled (-1 unknown, 0, 1), int profile, int route
+ *   byte has gains, int[10] Eagle gains
+ * </pre>
+ *
+ * Recorded on the effect thread. Changes within {@link #WRITE_DELAY_MS}
+ * of each other are written together on the given handler, keeping the fsync
+ * off the effect thread.
+ */
+final class ApplyJournal {
+    private static final String TAG = "ApplyJournal";
+
+    static final String FILE_NAME = "dtsultra_journal.bin";
+    private static final int MAGIC = 0x44544a4e /* DTJN */;
+    private static final int VERSION = 1;
+    private static final int BANDS = DtsConstants.EQ_BAND_COUNT;
+    private static final int FILE_SIZE = 4 + 4 + 1 + 4 + 4 + 1 + BANDS * 4;
+    /* Each write is an fsync, let a device switch or slider drag settle first */
+    static final long WRITE_DELAY_MS = 500;
+
+    private final AtomicFile mFile;
+    private final Handler mHandler;
+    private final Runnable mWrite = this::write;
+    /* Only touched by write(), on the write handler */
+    private final byte[] mBuffer = new byte[FILE_SIZE];
+
+    /* Guarded by this */
+    private int mEnabled = -1;
+    private int mProfile = -1;
+    private int mRoute = -1;
+    private boolean mHasGains;
+    private final int[] mGains = new int[BANDS];
+
+    private ApplyJournal(File file, Handler handler) {
+        mFile = new AtomicFile(file);
+        mHandler = handler;
+    }
+
+    /** Loads the journal from dir. Writes are done on the given handler. */
+    static ApplyJournal load(File dir, Handler handler) {
+        ApplyJournal journal = new ApplyJournal(new File(dir, FILE_NAME), handler);
+        journal.read();
+        return journal;
+    }
+
+    public void recordEnabled(boolean enabled) {
+        synchronized (this) {
+            if (mEnabled == (enabled ? 1 : 0)) {
+                return;
+            }
+            mEnabled = enabled ? 1 : 0;
+        }
+        scheduleWrite();
+    }
+
+    /** Records an applied profile, with the Eagle gains written for it if any. */
+    public void recordProfile(int profile, int route, int[] gains) {
+        boolean hasGains = gains != null;
+        synchronized (this) {
+            if (mProfile == profile && mRoute == route && mHasGains == hasGains
+                    && (!hasGains || Arrays.equals(mGains, gains))) {
+                return;
+            }
+            mProfile = profile;
+            mRoute = route;
+            mHasGains = hasGains;
+            if (hasGains) {
+                System.arraycopy(gains, 0, mGains, 0, BANDS);
+            }
+        }
+        scheduleWrite();
+    }
+
+    /**
+     * Writes everything journaled to the effect in one transaction. Returns it,
+     * or null if the journal is empty.
+     */
+    public synchronized DtsAudio.Transaction replay(DtsAudio audio) {
+        if (mEnabled < 0) {
+            return null;
+        }
+        DtsAudio.Transaction tx = audio.beginTransaction().setDtsOn(mEnabled > 0);
+        if (mEnabled > 0 && mProfile >= 0) {
+            tx.setProfile(mProfile);
+            if (mHasGains && mRoute >= 0) {
+                tx.setAllEqGains(mRoute, mProfile, mGains);
+            }
+        }
+        return tx.commit();
+    }
+
+    private void scheduleWrite() {
+        if (!mHandler.hasCallbacks(mWrite)) {
+            mHandler.postDelayed(mWrite, WRITE_DELAY_MS);
+        }
+    }
+
+    private synchronized void read() {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(mFile.readFully());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                Log.w(TAG, "Ignoring unknown journal format");
+                return;
+            }
+            mEnabled = buffer.get();
+            mProfile = buffer.getInt();
+            mRoute = buffer.getInt();
+            mHasGains = buffer.get() != 0;
+            for (int b = 0; b < BANDS; b++) {
+                mGains[b] = buffer.getInt();
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing applied yet
+        } catch (IOException | BufferUnderflowException e) {
+            Log.e(TAG, "Failed to read journal", e);
+            mEnabled = -1;
+        }
+    }
+
+    private void write() {
+        ByteBuffer buffer = ByteBuffer.wrap(mBuffer);
+        synchronized (this) {
+            buffer.putInt(MAGIC).putInt(VERSION);
+            buffer.put((byte) mEnabled).putInt(mProfile).putInt(mRoute);
+            buffer.put((byte) (mHasGains ? 1 : 0));
+            for (int b = 0; b < BANDS; b++) {
+                buffer.putInt(mGains[b]);
+            }
+        }
+
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            out.write(mBuffer, 0, buffer.position());
+            mFile.finishWrite(out);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write journal", e);
+            if (out != null) {
+                mFile.failWrite(out);
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+import java.util.List;
+
+import android.media.AudioPlaybackConfiguration;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Picks the profile for whatever is playing, with hysteresis: a new profile has
+ * to stay wanted for {@link #HOLD_MS} before it is switched to, so quick focus
+ * changes and notification sounds don't thrash the effect.
+ *
+ * Only used from the effect thread.
+ */
+final class AutoProfileController {
+    private static final String TAG = "AutoProfileController";
+
+    static final long HOLD_MS = 2000;
+
+    interface Callback {
+        void onAutoProfileChanged(int profile);
+    }
+
+    private final Handler mHandler;
+    private final Callback mCallback;
+    private final Runnable mSwitch = this::switchToPending;
+    private ProfileRules mRules = ProfileRules.EMPTY;
+    private int mProfile = -1;
+    private int mPending = -1;
+    private volatile long mSwitches = 0;
+    private volatile long mSuppressed = 0;
+
+    AutoProfileController(Handler handler, Callback callback) {
+        mHandler = handler;
+        mCallback = callback;
+    }
+
+    public void setRules(ProfileRules rules) {
+        mRules = rules;
+    }
+
+    /** Returns the profile switched to, or -1 if none yet. */
+    public int getProfile() {
+        return mProfile;
+    }
+
+    /** Forgets the current profile, e.g. when automatic switching is turned off. */
+    public void reset() {
+        mHandler.removeCallbacks(mSwitch);
+        mProfile = -1;
+        mPending = -1;
+    }
+
+    public void onPlaybackConfigChanged(List<AudioPlaybackConfiguration> configs) {
+        int wanted = -1;
+        for (int i = 0; i < configs.size(); i++) {
+            AudioPlaybackConfiguration config = configs.get(i);
+            if (config.getPlayerState() != AudioPlaybackConfiguration.PLAYER_STATE_STARTED) {
+                continue;
+            }
+            int profile = mRules.matchUid(config.getClientUid());
+            if (profile >= 0) {
+                /* An app rule beats anything guessed from attributes */
+                wanted = profile;
+                break;
+            }
+            if (wanted < 0) {
+                wanted = ProfileRules.profileFor(config.getAudioAttributes());
+            }
+        }
+        /* Nothing recognizable playing, keep what we have */
+        if (wanted < 0 || wanted == mPending) {
+            return;
+        }
+        if (mHandler.hasCallbacks(mSwitch)) {
+            mSuppressed++;
+        }
+        mHandler.removeCallbacks(mSwitch);
+        mPending = wanted;
+        if (wanted != mProfile) {
+            mHandler.postDelayed(mSwitch, mProfile < 0 ? 0 : HOLD_MS);
+        }
+    }
+
+    public long getSwitchCount() {
+        return mSwitches;
+    }
+
+    /** Number of pending switches abandoned because the wanted profile changed again. */
+    public long getSuppressedCount() {
+        return mSuppressed;
+    }
+
+    private void switchToPending() {
+        mProfile = mPending;
+        mSwitches++;
+        dlog("switching to " + mProfile);
+        mCallback.onAutoProfileChanged(mProfile);
+    }
+
+    private static void dlog(String msg) {
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, msg);
+        }
+    }
+}
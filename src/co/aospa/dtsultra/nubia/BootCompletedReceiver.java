@@ -23,12 +23,9 @@ public class BootCompletedReceiver extends BroadcastReceiver {
 
         Log.i(TAG, "Boot completed, starting dtsultra");
 
-        DtsUtils dtsUtils = DtsUtils.getInstance(context);
-        dtsUtils.onBootCompleted();
-
-        if (dtsUtils.getDtsOn()) {
-            DtsUtils.reset();
-            dtsUtils = DtsUtils.getInstance(context);
-        }
+        final PendingResult result = goAsync();
+        DtsUtils.getInstance(context).onBootCompleted()
+                .thenAccept(on -> Log.i(TAG, "Restored dtsultra, enabled: " + on))
+                .whenComplete((v, t) -> result.finish());
     }
 }
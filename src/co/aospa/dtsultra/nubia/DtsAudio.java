@@ -10,14 +10,17 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Set;
 import java.util.UUID;
 
 import android.media.audiofx.AudioEffect;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 
 import co.aospa.dtsultra.nubia.DtsConstants.DtsSystemComm;
 
-class DtsAudio extends AudioEffect {
+class DtsAudio extends AudioEffect implements EffectBackend {
     private static final String TAG = "DtsAudio";
 
     private static final UUID EFFECT_TYPE_DTS = UUID.fromString("1d4033c0-8557-11df-9f2d-0002a5d5c51b");
@@ -25,49 +28,161 @@ class DtsAudio extends AudioEffect {
     private static final byte[] GET_ALLOCATION_SIZE_MAGIC_BYTES = {10, 11, 11, 10};
     private static final int GET_ALLOCATION_SIZE_MAGIC = ByteBuffer.wrap(GET_ALLOCATION_SIZE_MAGIC_BYTES).order(ByteOrder.nativeOrder()).getInt();
 
+    /* Write-through cache of the last values written to (or read from) the effect */
+    private static final int UNCACHED = Integer.MIN_VALUE;
+    private int mCachedEnabled = UNCACHED;
+    private int mCachedProfile = UNCACHED;
+    private final SparseBooleanArray mCachedEqOn = new SparseBooleanArray();
+    private final SparseArray<int[]> mCachedEqGains = new SparseArray<>();
+    private boolean mHadControl;
+    private int mCacheGeneration = 0;
+
+    /* DtsAudio is only used from the effect thread */
+    private final DtsParamCodec mCodec = new DtsParamCodec(EffectMetrics.INSTANCE,
+            TrafficRecorder.getInstance());
+    private final Transaction mTransaction = new Transaction();
+    /* Null until probed, everything is tried meanwhile */
+    private DtsCapabilities mCapabilities;
+    private final int[] mFiveBand = new int[DtsConstants.EQ_BAND_COUNT / 2];
+    /* Fits any fixed size reply, probes only look at the first int */
+    private final byte[] mProbeReply = new byte[(DtsConstants.EQ_BAND_COUNT + 2) * 4];
+
     public DtsAudio(int priority, int audioSession) {
         super(EFFECT_TYPE_DTS, EFFECT_UUID_DTS, priority, audioSession);
+        mHadControl = super.hasControl();
     }
 
-    private static byte[] intArrayToByteArray(int[] arr) {
-        ByteBuffer bytes = ByteBuffer.allocate(arr.length * 4);
-        bytes.order(ByteOrder.nativeOrder());
-        for (int v : arr) {
-            bytes.putInt(v);
+    /**
+     * Drops the cache whenever control over the effect changes hands, since the
+     * other client may have reconfigured it in the meantime.
+     */
+    @Override
+    public boolean hasControl() {
+        boolean control = super.hasControl();
+        if (control != mHadControl) {
+            dlog("hasControl changed: " + mHadControl + " -> " + control);
+            invalidateCache();
+            mHadControl = control;
         }
-        return bytes.array();
+        return control;
     }
 
-    private int setParameter(int param, int[] value) {
-        return setParameter(param, intArrayToByteArray(value));
+    public void invalidateCache() {
+        mCacheGeneration++;
+        mCachedEnabled = UNCACHED;
+        mCachedProfile = UNCACHED;
+        mCachedEqOn.clear();
+        mCachedEqGains.clear();
     }
 
-    private int getParameterIntegerCombined(DtsSystemComm param, int[] data) {
-        int[] cmd = new int[data != null ? data.length + 1 : 1];
-        cmd[0] = param.getNum();
-        if (data != null) {
-            System.arraycopy(data, 0, cmd, 1, data.length);
-        }
-        int[] result = new int[]{0};
-        int ret = getParameter(cmd, result);
+    /** Changes every time the cache is dropped. */
+    public int getCacheGeneration() {
+        return mCacheGeneration;
+    }
 
-        dlog("getParameterIntegerCombined: " + param + " -> " + (ret < 0 ? ret : result[0]));
+    private static int eqKey(int route, int profile) {
+        return (route << 16) | (profile & 0xffff);
+    }
 
-        return ret < 0 ? ret : result[0];
+    private ByteBuffer value(int ints) {
+        return mCodec.value(ints);
     }
 
-    private int getParameterIntegerAsData(DtsSystemComm param, int[] data) {
-        int[] cmd = new int[data != null ? data.length + 1 : 1];
-        cmd[0] = param.getNum();
-        if (data != null) {
-            System.arraycopy(data, 0, cmd, 1, data.length);
+    public void setCapabilities(DtsCapabilities capabilities) {
+        mCapabilities = capabilities;
+    }
+
+    public DtsCapabilities getCapabilities() {
+        return mCapabilities;
+    }
+
+    private boolean isSupported(DtsSystemComm param) {
+        return mCapabilities == null || mCapabilities.isSupported(param);
+    }
+
+    /*
+     * Learns commands the effect turns down at runtime, reads and writes alike. The
+     * effect rejects a command it does not implement with ERROR_INVALID_OPERATION;
+     * ERROR and ERROR_BAD_VALUE may just as well be about the arguments, so they
+     * are not taken as a sign.
+     */
+    private int checkSupport(DtsSystemComm param, int ret) {
+        if (ret == ERROR_INVALID_OPERATION && mCapabilities != null) {
+            mCapabilities.markUnsupported(param);
         }
-        int[] result = new int[1];
-        int ret = getParameter(cmd, result);
+        return ret;
+    }
 
-        dlog("getParameterIntegerAsData: " + param + " -> " + (ret < 0 ? ret : result[0]));
+    /* Fails commands known to be unsupported without asking */
+    private int setParameter(DtsSystemComm param, ByteBuffer value) {
+        if (!isSupported(param)) {
+            return ERROR_INVALID_OPERATION;
+        }
+        return checkSupport(param, mCodec.set(this, param, value));
+    }
 
-        return ret < 0 ? ret : result[0];
+    /*
+     * NOT_SUPPORTED only ever comes back in a read's reply: AudioEffect turns
+     * native statuses it does not know into ERROR, and its own codes stop at -7,
+     * so a -8 from getInt() is the firmware's.
+     */
+    private int getInt(DtsSystemComm param, int[] data) {
+        if (!isSupported(param)) {
+            return ERROR_INVALID_OPERATION;
+        }
+        ByteBuffer result = value(1);
+        int ret = mCodec.get(this, param, data, result.array());
+        if (ret < 0) {
+            return checkSupport(param, ret);
+        } else if (ret < 4) {
+            /* Anything shorter than an int is not a valid reply */
+            return ERROR;
+        }
+        int reply = result.getInt(0);
+        if (reply == DtsConstants.SERVICE_CODE_NOT_SUPPORTED && mCapabilities != null) {
+            mCapabilities.markUnsupported(param);
+        }
+        return reply;
+    }
+
+    /**
+     * Reads a command once to see whether the effect implements it, for
+     * {@link DtsCapabilities}. The effect rejecting the read with
+     * ERROR_INVALID_OPERATION, or answering NOT_SUPPORTED, means it does not.
+     * ERROR and ERROR_BAD_VALUE may be about the arguments, so the command is given
+     * the benefit of the doubt. Other errors are about the effect itself and tell
+     * nothing about the command.
+     *
+     * @param data the arguments the command takes, or null
+     * @return one of the DtsCapabilities.PROBE_* values
+     */
+    int probeParameter(DtsSystemComm param, int[] data) {
+        int ret = mCodec.get(this, param, data, mProbeReply);
+        dlog("probe " + param + " -> " + DtsConstants.effectStatusName(Math.min(ret, 0)));
+        return switch (ret) {
+            case ERROR_INVALID_OPERATION -> DtsCapabilities.PROBE_UNSUPPORTED;
+            case ERROR, ERROR_BAD_VALUE -> DtsCapabilities.PROBE_SUPPORTED;
+            case ERROR_NO_INIT, ERROR_NO_MEMORY, ERROR_DEAD_OBJECT, ALREADY_EXISTS -> DtsCapabilities.PROBE_FAILED;
+            default -> ret >= 4 && ByteBuffer.wrap(mProbeReply).order(ByteOrder.nativeOrder())
+                    .getInt(0) == DtsConstants.SERVICE_CODE_NOT_SUPPORTED
+                    ? DtsCapabilities.PROBE_UNSUPPORTED : DtsCapabilities.PROBE_SUPPORTED;
+        };
+    }
+
+    private int getParameterIntegerCombined(DtsSystemComm param, int[] data) {
+        int ret = getInt(param, data);
+        if (isDebug()) {
+            Log.d(TAG, "getParameterIntegerCombined: " + param + " -> " + ret);
+        }
+        return ret;
+    }
+
+    private int getParameterIntegerAsData(DtsSystemComm param, int[] data) {
+        int ret = getInt(param, data);
+        if (isDebug()) {
+            Log.d(TAG, "getParameterIntegerAsData: " + param + " -> " + ret);
+        }
+        return ret;
     }
 
     int getParameterStringAllocationSize(DtsSystemComm param) {
@@ -78,15 +193,9 @@ class DtsAudio extends AudioEffect {
     }
 
     private String getParameterString(DtsSystemComm param, int[] data, int length) {
-        int[] cmd = new int[data != null ? data.length + 1 : 1];
-        cmd[0] = param.getNum();
-        if (data != null) {
-            System.arraycopy(data, 0, cmd, 1, data.length);
-        }
-
         byte[] result = new byte[length];
 
-        int ret = getParameter(cmd, result);
+        int ret = mCodec.get(this, param, data, result);
 
         if (ret < 0) {
             Log.e(TAG, "getParameterString(" + param + ") error: " + ret);
@@ -134,53 +243,335 @@ class DtsAudio extends AudioEffect {
     }
 
     public boolean getDtsOn() {
-        return getParameterIntegerCombined(DtsSystemComm.GET_ENABLED, null) > 0;
+        if (mCachedEnabled == UNCACHED) {
+            int ret = getParameterIntegerCombined(DtsSystemComm.GET_ENABLED, null);
+            if (ret < 0) {
+                return false;
+            }
+            mCachedEnabled = ret;
+        }
+        return mCachedEnabled > 0;
     }
 
-    public void setDtsOn(boolean enable) {
-        dlog("setDtsOn: " + enable);
-        setParameter(DtsSystemComm.SET_ENABLED.getNum(), enable ? 1 : 0);
+    public int setDtsOn(boolean enable) {
+        if (isDebug()) {
+            Log.d(TAG, "setDtsOn: " + enable);
+        }
+        int ret = setParameter(DtsSystemComm.SET_ENABLED, value(1).putInt(enable ? 1 : 0));
+        mCachedEnabled = ret < 0 ? UNCACHED : (enable ? 1 : 0);
+        return ret;
     }
 
-    public void setProfile(int profile) {
-        dlog("setProfile: " + profile);
-        setParameter(DtsSystemComm.SET_CONTENT_MODE_V2.getNum(), profile);
+    public int setProfile(int profile) {
+        if (isDebug()) {
+            Log.d(TAG, "setProfile: " + profile);
+        }
+        int ret = setParameter(DtsSystemComm.SET_CONTENT_MODE_V2, value(1).putInt(profile));
+        mCachedProfile = ret < 0 ? UNCACHED : profile;
+        return ret;
     }
 
     public int getProfile() {
-        return getParameterIntegerAsData(DtsSystemComm.GET_CONTENT_MODE_V2, null);
+        if (mCachedProfile == UNCACHED) {
+            int ret = getParameterIntegerAsData(DtsSystemComm.GET_CONTENT_MODE_V2, null);
+            if (ret < 0) {
+                return ret;
+            }
+            mCachedProfile = ret;
+        }
+        return mCachedProfile;
     }
 
-    public void setEqOnV3(int route, int profile, boolean enabled) {
-        dlog("setEqOnV3: " + enabled);
-        int[] data = {route, profile, enabled ? 1 : 0};
-        int ret = setParameter(DtsSystemComm.SET_GEQ_ENABLED_V3.getNum(), data);
-        dlog("setEqOnV3 -> " + ret);
+    public int setEqOnV3(int route, int profile, boolean enabled) {
+        int key = eqKey(route, profile);
+        if (mCachedEqOn.indexOfKey(key) >= 0 && mCachedEqOn.get(key) == enabled) {
+            dlog("setEqOnV3: skip, already set");
+            return SUCCESS;
+        }
+        ByteBuffer data = value(3).putInt(route).putInt(profile).putInt(enabled ? 1 : 0);
+        int ret = setParameter(DtsSystemComm.SET_GEQ_ENABLED_V3, data);
+        if (isDebug()) {
+            Log.d(TAG, "setEqOnV3: " + enabled + " -> " + ret);
+        }
+        if (ret < 0) {
+            mCachedEqOn.delete(key);
+        } else {
+            mCachedEqOn.put(key, enabled);
+        }
+        return ret;
     }
 
-    public void setAllEqGainsV3(int route, int profile, int gains[]) {
+    /**
+     * Writes a 10 band curve of Eagle gains with the best command the firmware has:
+     * the V3 10 band one, else merged down to 5 bands for V3. If the 10 band one is
+     * turned down, the 5 band one is tried right away.
+     */
+    public int setAllEqGains(int route, int profile, int gains[]) {
         if (gains.length != 10) {
-            Log.e(TAG, "setAllGEQGainsV3 expected 10 bands, but got " + gains.length);
-            return;
+            Log.e(TAG, "setAllEqGains expected 10 bands, but got " + gains.length);
+            return ERROR_BAD_VALUE;
+        }
+        int key = eqKey(route, profile);
+        if (Arrays.equals(mCachedEqGains.get(key), gains)) {
+            dlog("setAllEqGains: skip, gains unchanged");
+            return SUCCESS;
+        }
+        final DtsSystemComm param;
+        final ByteBuffer data;
+        if (isSupported(DtsSystemComm.SET_GEQ_GAIN_ALL_V3)) {
+            param = DtsSystemComm.SET_GEQ_GAIN_ALL_V3;
+            data = value(12).putInt(route).putInt(profile);
+            for (int gain : gains) {
+                data.putInt(gain);
+            }
+        } else {
+            /* Eagle gains are linear, so a pair is merged at the mean of its dB values */
+            for (int b = 0; b < mFiveBand.length; b++) {
+                mFiveBand[b] = (int) Math.round(
+                        Math.sqrt((double) gains[2 * b] * gains[2 * b + 1]));
+            }
+            param = DtsSystemComm.SET_GEQ_5BAND_GAIN_ALL_V3;
+            data = value(7).putInt(route).putInt(profile);
+            for (int gain : mFiveBand) {
+                data.putInt(gain);
+            }
+        }
+        int ret = setParameter(param, data);
+        if (ret == ERROR_INVALID_OPERATION && param == DtsSystemComm.SET_GEQ_GAIN_ALL_V3
+                && !isSupported(param)) {
+            return setAllEqGains(route, profile, gains);
+        }
+        if (isDebug()) {
+            Log.d(TAG, "setAllEqGains: " + param + " " + Arrays.toString(gains) + " -> " + ret);
+        }
+        int[] cached = mCachedEqGains.get(key);
+        if (ret < 0) {
+            mCachedEqGains.delete(key);
+        } else if (cached != null) {
+            System.arraycopy(gains, 0, cached, 0, gains.length);
+        } else {
+            mCachedEqGains.put(key, gains.clone());
+        }
+        return ret;
+    }
+
+    /**
+     * Reads the given fields back from the effect in one go, the curve ones for the
+     * given route and the reported profile (or the given one, if that is not read).
+     * Unsupported commands are skipped. What is read also refreshes the cache, so
+     * later writes are checked against the effect's real state.
+     */
+    public EffectSnapshot readSnapshot(Set<EffectSnapshot.Field> fields, int route, int profile) {
+        final long start = System.nanoTime();
+        final int[] values = new int[EffectSnapshot.Field.values().length];
+        Arrays.fill(values, EffectSnapshot.UNKNOWN);
+        int[] gains = null;
+        int reads = 0;
+        for (EffectSnapshot.Field field : fields) {
+            if (field == EffectSnapshot.Field.GEQ_GAINS || !isSupported(field.command)) {
+                continue;
+            }
+            int ret = getInt(field.command, field.perCurve ? new int[]{route, profile} : null);
+            reads++;
+            if (ret >= 0) {
+                values[field.ordinal()] = ret;
+                if (field == EffectSnapshot.Field.PROFILE) {
+                    profile = ret;
+                }
+            }
+        }
+        if (fields.contains(EffectSnapshot.Field.GEQ_GAINS)
+                && isSupported(DtsSystemComm.GET_GEQ_GAIN_ALL_V3)) {
+            ByteBuffer result = value(DtsConstants.EQ_BAND_COUNT);
+            int ret = mCodec.get(this, DtsSystemComm.GET_GEQ_GAIN_ALL_V3,
+                    new int[]{route, profile}, result.array());
+            reads++;
+            if (ret >= result.capacity()) {
+                gains = new int[DtsConstants.EQ_BAND_COUNT];
+                result.asIntBuffer().get(gains);
+            }
+        }
+
+        int enabled = values[EffectSnapshot.Field.ENABLED.ordinal()];
+        if (enabled != EffectSnapshot.UNKNOWN) {
+            mCachedEnabled = enabled > 0 ? 1 : 0;
+        }
+        if (values[EffectSnapshot.Field.PROFILE.ordinal()] != EffectSnapshot.UNKNOWN) {
+            mCachedProfile = profile;
+        }
+        int eqOn = values[EffectSnapshot.Field.GEQ_ENABLED.ordinal()];
+        if (eqOn != EffectSnapshot.UNKNOWN) {
+            mCachedEqOn.put(eqKey(route, profile), eqOn > 0);
+        }
+        if (gains != null) {
+            mCachedEqGains.put(eqKey(route, profile), gains.clone());
+        }
+        return new EffectSnapshot(route, profile, values, gains, reads, System.nanoTime() - start);
+    }
+
+    /**
+     * Starts a new transaction, dropping the previous one and its results. There is
+     * only one per effect, so it must be committed before the next one begins.
+     */
+    public Transaction beginTransaction() {
+        mTransaction.reset();
+        return mTransaction;
+    }
+
+    /**
+     * A group of writes committed back to back in a single effect thread slot.
+     * Writes the cache shows to be in place already are dropped when queued, so
+     * nothing is read back from the effect in between.
+     *
+     * The firmware's TUNE_SET_DATA payload layout is not known, so every write
+     * still is its own parameter call.
+     */
+    public final class Transaction {
+        private static final int MAX_COMMANDS = 8;
+
+        private final DtsSystemComm[] mParams = new DtsSystemComm[MAX_COMMANDS];
+        private final int[][] mArgs = new int[MAX_COMMANDS][3];
+        private final int[][] mGains = new int[MAX_COMMANDS][DtsConstants.EQ_BAND_COUNT];
+        private final int[] mStatus = new int[MAX_COMMANDS];
+        private int mCount;
+        private int mSkipped;
+        private boolean mCommitted;
+
+        private Transaction() {
+        }
+
+        private void reset() {
+            mCount = 0;
+            mSkipped = 0;
+            mCommitted = false;
+        }
+
+        private int add(DtsSystemComm param, int arg0, int arg1, int arg2) {
+            if (mCommitted) {
+                throw new IllegalStateException("Transaction already committed");
+            }
+            if (mCount == MAX_COMMANDS) {
+                throw new IllegalStateException("Too many commands in transaction");
+            }
+            mParams[mCount] = param;
+            mArgs[mCount][0] = arg0;
+            mArgs[mCount][1] = arg1;
+            mArgs[mCount][2] = arg2;
+            return mCount++;
+        }
+
+        public Transaction setDtsOn(boolean enable) {
+            if (mCachedEnabled == (enable ? 1 : 0)) {
+                mSkipped++;
+            } else {
+                add(DtsSystemComm.SET_ENABLED, enable ? 1 : 0, 0, 0);
+            }
+            return this;
+        }
+
+        public Transaction setProfile(int profile) {
+            if (mCachedProfile == profile) {
+                mSkipped++;
+            } else {
+                add(DtsSystemComm.SET_CONTENT_MODE_V2, profile, 0, 0);
+            }
+            return this;
+        }
+
+        public Transaction setEqOnV3(int route, int profile, boolean enabled) {
+            int key = eqKey(route, profile);
+            if (mCachedEqOn.indexOfKey(key) >= 0 && mCachedEqOn.get(key) == enabled) {
+                mSkipped++;
+            } else {
+                add(DtsSystemComm.SET_GEQ_ENABLED_V3, route, profile, enabled ? 1 : 0);
+            }
+            return this;
+        }
+
+        /** The gains are copied, the array may be reused right away. */
+        public Transaction setAllEqGains(int route, int profile, int[] gains) {
+            if (gains.length != DtsConstants.EQ_BAND_COUNT) {
+                throw new IllegalArgumentException("Expected 10 bands, but got " + gains.length);
+            }
+            if (Arrays.equals(mCachedEqGains.get(eqKey(route, profile)), gains)) {
+                mSkipped++;
+            } else {
+                int i = add(DtsSystemComm.SET_GEQ_GAIN_ALL_V3, route, profile, 0);
+                System.arraycopy(gains, 0, mGains[i], 0, gains.length);
+            }
+            return this;
+        }
+
+        /** Writes all queued commands in order, carrying on past failed ones. */
+        public Transaction commit() {
+            mCommitted = true;
+            for (int i = 0; i < mCount; i++) {
+                int[] args = mArgs[i];
+                mStatus[i] = switch (mParams[i]) {
+                    case SET_ENABLED -> DtsAudio.this.setDtsOn(args[0] != 0);
+                    case SET_CONTENT_MODE_V2 -> DtsAudio.this.setProfile(args[0]);
+                    case SET_GEQ_ENABLED_V3 -> DtsAudio.this.setEqOnV3(args[0], args[1], args[2] != 0);
+                    case SET_GEQ_GAIN_ALL_V3 -> DtsAudio.this.setAllEqGains(args[0], args[1], mGains[i]);
+                    default -> ERROR_INVALID_OPERATION;
+                };
+            }
+            if (isDebug()) {
+                Log.d(TAG, "commit: " + this);
+            }
+            return this;
+        }
+
+        /** Number of commands that went to the effect. */
+        public int getCount() {
+            return mCount;
+        }
+
+        /** Number of commands dropped because the effect already was in that state. */
+        public int getSkippedCount() {
+            return mSkipped;
+        }
+
+        public DtsSystemComm getCommand(int i) {
+            return mParams[i];
+        }
+
+        /** Returns the AudioEffect status of the i-th command. */
+        public int getStatus(int i) {
+            return mStatus[i];
+        }
+
+        public boolean isSuccessful() {
+            for (int i = 0; i < mCount; i++) {
+                if (mStatus[i] < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < mCount; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(mParams[i]);
+                if (mCommitted) {
+                    sb.append('=').append(DtsConstants.effectStatusName(mStatus[i]));
+                }
+            }
+            return sb.append("] skipped=").append(mSkipped).toString();
         }
-        int[] data = new int[12];
-        data[0] = route;
-        data[1] = profile;
-        System.arraycopy(gains, 0, data, 2, 10);
-        dlog("setAllEqGainsV3: " + Arrays.toString(gains));
-        int ret = setParameter(DtsSystemComm.SET_GEQ_GAIN_ALL_V3.getNum(), data);
-        dlog("setAllEqGainsV3 -> " + ret);
     }
 
-    public void setEqGainV3(int route, int profile, int band, int gain) {
-        int[] data = new int[]{route, profile, band, gain};
-        dlog("setEqGainV3: " + band + " -> " + gain);
-        int ret = setParameter(DtsSystemComm.SET_GEQ_GAIN_V3.getNum(), data);
-        dlog("setEqGainV3 -> " + ret);
+    /* Check before building log strings on hot paths */
+    private static boolean isDebug() {
+        return Log.isLoggable(TAG, Log.DEBUG);
     }
 
     private static void dlog(String msg) {
-        if (Log.isLoggable(TAG, Log.DEBUG)) {
+        if (isDebug()) {
             Log.d(TAG, msg);
         }
     }
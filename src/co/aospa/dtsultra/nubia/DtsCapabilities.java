@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.Map;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import co.aospa.dtsultra.nubia.DtsConstants.AudioRoute;
+import co.aospa.dtsultra.nubia.DtsConstants.DtsSystemComm;
+
+/**
+ * Which commands the effect firmware implements, so calls it would only turn
+ * down are never made. The reads the app issues are probed once per firmware
+ * version, with the arguments they take; everything else, writes included, is
+ * learned when the effect actually turns it down.
+ *
+ * Persisted next to the diagnostics, keyed by the version string, as the codes
+ * of the unsupported commands so app updates adding commands keep it valid.
+ *
+ * Only used from the effect thread.
+ */
+final class DtsCapabilities {
+    private static final String TAG = "DtsCapabilities";
+
+    /* Bumped when what gets probed changes, so results from before are dropped */
+    private static final String KEY_VERSIONS = "caps_versions_v2";
+    private static final String KEY_UNSUPPORTED = "caps_unsupported";
+
+    /* Outcomes of DtsAudio.probeParameter() */
+    static final int PROBE_SUPPORTED = 0;
+    static final int PROBE_UNSUPPORTED = 1;
+    /* The effect itself failed, nothing learned */
+    static final int PROBE_FAILED = 2;
+
+    private static final DtsSystemComm[] COMMANDS = DtsSystemComm.values();
+    /* The reads to probe, with the arguments DtsAudio reads them with */
+    private static final Map<DtsSystemComm, int[]> PROBES = new EnumMap<>(DtsSystemComm.class);
+
+    static {
+        final int[] curve = {AudioRoute.INTERNAL_SPEAKERS.ordinal(), DtsConstants.PROFILE_MUSIC};
+        for (EffectSnapshot.Field field : EffectSnapshot.Field.values()) {
+            PROBES.put(field.command, field.perCurve ? curve : null);
+        }
+        PROBES.put(DtsSystemComm.GET_DTS_LICENSE_IS_VALID, null);
+    }
+
+    private final SharedPreferences mPrefs;
+    private final String mVersions;
+    /* By command ordinal */
+    private final BitSet mUnsupported = new BitSet(COMMANDS.length);
+
+    private DtsCapabilities(SharedPreferences prefs, String versions) {
+        mPrefs = prefs;
+        mVersions = versions;
+    }
+
+    /** Returns the capabilities saved for this firmware version, or null. */
+    static DtsCapabilities load(SharedPreferences prefs, String versions) {
+        if (!versions.equals(prefs.getString(KEY_VERSIONS, null))) {
+            return null;
+        }
+        DtsCapabilities caps = new DtsCapabilities(prefs, versions);
+        String unsupported = prefs.getString(KEY_UNSUPPORTED, "");
+        for (String code : unsupported.split(",")) {
+            if (code.isEmpty()) {
+                continue;
+            }
+            try {
+                DtsSystemComm command = DtsSystemComm.fromNum(Integer.parseInt(code));
+                if (command != null) {
+                    caps.mUnsupported.set(command.ordinal());
+                }
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Ignoring invalid command code " + code);
+            }
+        }
+        return caps;
+    }
+
+    /**
+     * Probes the effect, one binder round trip per read, and saves the result for
+     * this firmware version. Returns null without saving anything if the effect
+     * stops answering, so the next start probes again.
+     */
+    static DtsCapabilities probe(DtsAudio audio, SharedPreferences prefs, String versions) {
+        DtsCapabilities caps = new DtsCapabilities(prefs, versions);
+        for (Map.Entry<DtsSystemComm, int[]> probe : PROBES.entrySet()) {
+            DtsSystemComm command = probe.getKey();
+            switch (audio.probeParameter(command, probe.getValue())) {
+                case PROBE_UNSUPPORTED -> caps.mUnsupported.set(command.ordinal());
+                case PROBE_FAILED -> {
+                    Log.w(TAG, "Effect failed while probing " + command + ", giving up");
+                    return null;
+                }
+            }
+        }
+        caps.save();
+        return caps;
+    }
+
+    public boolean isSupported(DtsSystemComm command) {
+        return !mUnsupported.get(command.ordinal());
+    }
+
+    /** Remembers a command the effect turned down, saving it if that is news. */
+    public void markUnsupported(DtsSystemComm command) {
+        if (!mUnsupported.get(command.ordinal())) {
+            Log.i(TAG, command + " is not supported");
+            mUnsupported.set(command.ordinal());
+            save();
+        }
+    }
+
+    private void save() {
+        mPrefs.edit()
+                .putString(KEY_VERSIONS, mVersions)
+                .putString(KEY_UNSUPPORTED, unsupportedCodes())
+                .apply();
+    }
+
+    private String unsupportedCodes() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = mUnsupported.nextSetBit(0); i >= 0; i = mUnsupported.nextSetBit(i + 1)) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(COMMANDS[i].getNum());
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("unsupported=[");
+        for (int i = mUnsupported.nextSetBit(0); i >= 0; i = mUnsupported.nextSetBit(i + 1)) {
+            if (sb.charAt(sb.length() - 1) != '[') {
+                sb.append(", ");
+            }
+            sb.append(COMMANDS[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -6,19 +6,7 @@
 
 package co.aospa.dtsultra.nubia;
 
-import static android.media.AudioDeviceInfo.TYPE_BLE_HEADSET;
-import static android.media.AudioDeviceInfo.TYPE_BLE_SPEAKER;
-import static android.media.AudioDeviceInfo.TYPE_BLUETOOTH_A2DP;
-import static android.media.AudioDeviceInfo.TYPE_BUILTIN_EARPIECE;
-import static android.media.AudioDeviceInfo.TYPE_BUILTIN_SPEAKER;
-import static android.media.AudioDeviceInfo.TYPE_LINE_ANALOG;
-import static android.media.AudioDeviceInfo.TYPE_LINE_DIGITAL;
-import static android.media.AudioDeviceInfo.TYPE_USB_HEADSET;
-import static android.media.AudioDeviceInfo.TYPE_WIRED_HEADPHONES;
-import static android.media.AudioDeviceInfo.TYPE_WIRED_HEADSET;
-
-import java.util.EnumMap;
-import java.util.Map;
+import android.media.audiofx.AudioEffect;
 
 public class DtsConstants {
     /* Effect error codes */
@@ -39,17 +27,51 @@ public class DtsConstants {
     public static final int SERVICE_CODE_DTSCS_TO_EAGLE_CONV_FAILED = -1004;
     public static final int SERVICE_CODE_UUID_NOT_FOUND = -1005;
 
+    /**
+     * Returns the name of an AudioEffect status, which is what parameter calls
+     * return, for logs. These overlap with the codes above, which the effect can
+     * only report in a reply payload.
+     */
+    public static String effectStatusName(int status) {
+        return switch (status) {
+            case AudioEffect.SUCCESS -> "SUCCESS";
+            case AudioEffect.ERROR -> "ERROR";
+            case AudioEffect.ALREADY_EXISTS -> "ALREADY_EXISTS";
+            case AudioEffect.ERROR_NO_INIT -> "ERROR_NO_INIT";
+            case AudioEffect.ERROR_BAD_VALUE -> "ERROR_BAD_VALUE";
+            case AudioEffect.ERROR_INVALID_OPERATION -> "ERROR_INVALID_OPERATION";
+            case AudioEffect.ERROR_NO_MEMORY -> "ERROR_NO_MEMORY";
+            case AudioEffect.ERROR_DEAD_OBJECT -> "ERROR_DEAD_OBJECT";
+            default -> status > 0 ? "SUCCESS(" + status + ")" : Integer.toString(status);
+        };
+    }
+
     /* Profiles */
     public static final int PROFILE_MUSIC = 3;
     public static final int PROFILE_MOVIE = 4;
     public static final int PROFILE_GAME = 6;
 
+    public static final int[] PROFILES = {PROFILE_MUSIC, PROFILE_MOVIE, PROFILE_GAME};
+
     public static final int PRESET_ROCK = 0;
     public static final int PRESET_CLASSICAL = 1;
     public static final int PRESET_POP = 2;
     public static final int PRESET_OFF = 3;
     public static final int PRESET_CUSTOM = 4;
 
+    /* Graphic equalizer */
+    public static final int EQ_BAND_COUNT = 10;
+
+    /** Returns the position of the profile in {@link #PROFILES}, or -1. */
+    public static int profileIndex(int profile) {
+        for (int i = 0; i < PROFILES.length; i++) {
+            if (PROFILES[i] == profile) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     enum AudioRoute {
         UNKNOWN,
         INTERNAL_SPEAKERS,
@@ -122,35 +144,77 @@ public class DtsConstants {
         GET_GEQ_5BAND_GAIN_ALL_V3,
         TUNE_SET_DATA(5000);
 
-        private final int mNum;
-        private static final Map<DtsSystemComm, Integer> NUMS = new EnumMap(DtsSystemComm.class);
-        private static final int NUM_BASE = 0;
+        /* Codes up to this are decoded through a dense table, the rest by scanning */
+        private static final int DENSE_LIMIT = 1024;
+        private static final DtsSystemComm[] BY_NUM;
+        private static final DtsSystemComm[] SPARSE;
 
         static {
-            int num = NUM_BASE;
-            for (var value : values()) {
-                int currNum = value.mNum;
-                if (currNum > 0) {
-                    if (currNum <= num) {
-                        throw new ExceptionInInitializerError("Non unique code for " + value);
-                    }
-                    num = currNum;
+            DtsSystemComm[] values = values();
+            int max = -1;
+            int sparse = 0;
+            for (var value : values) {
+                if (value.mNum < DENSE_LIMIT) {
+                    max = Math.max(max, value.mNum);
+                } else {
+                    sparse++;
+                }
+            }
+            BY_NUM = new DtsSystemComm[max + 1];
+            SPARSE = new DtsSystemComm[sparse];
+            sparse = 0;
+            for (var value : values) {
+                if (value.mNum < DENSE_LIMIT) {
+                    BY_NUM[value.mNum] = value;
+                } else {
+                    SPARSE[sparse++] = value;
                 }
-                NUMS.put(value, num);
-                num++;
             }
         }
 
+        /*
+         * Enum constructors can't touch the enum's own statics, so the running code
+         * lives in a holder that is initialized on the first constant.
+         */
+        private static final class NextNum {
+            static int sNum = 0;
+        }
+
+        private final int mNum;
+
         DtsSystemComm() {
-            this(-1);
+            this(NextNum.sNum);
         }
 
         DtsSystemComm(int num) {
-            this.mNum = num;
+            if (num < NextNum.sNum) {
+                throw new ExceptionInInitializerError("Non unique code for " + num);
+            }
+            mNum = num;
+            NextNum.sNum = num + 1;
         }
 
         public int getNum() {
-            return NUMS.get(this).intValue();
+            return mNum;
+        }
+
+        /** Returns the command with the given code, or null if there is none. */
+        public static DtsSystemComm fromNum(int num) {
+            if (num >= 0 && num < BY_NUM.length) {
+                return BY_NUM[num];
+            }
+            for (var value : SPARSE) {
+                if (value.mNum == num) {
+                    return value;
+                }
+            }
+            return null;
+        }
+
+        /** Returns the command name for the given code, or the raw code if unknown. */
+        public static String describe(int num) {
+            DtsSystemComm value = fromNum(num);
+            return value != null ? value.name() : Integer.toString(num);
         }
     }
 }
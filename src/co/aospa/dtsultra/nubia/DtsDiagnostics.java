@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+import android.content.SharedPreferences;
+
+/**
+ * License and version information reported by the effect. It only changes with
+ * the firmware, so it is persisted along with the build fingerprint and fetched
+ * from the effect again only when that changes.
+ */
+final class DtsDiagnostics {
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_LICENSED = "licensed";
+    private static final String KEY_TOKENS = "tokens";
+    private static final String KEY_VERSIONS = "versions";
+    private static final String KEY_CONFIGS = "configs";
+
+    private final boolean mLicensed;
+    private final String mTokens;
+    private final String mVersions;
+    private final String mConfigs;
+
+    private DtsDiagnostics(boolean licensed, String tokens, String versions, String configs) {
+        mLicensed = licensed;
+        mTokens = tokens;
+        mVersions = versions;
+        mConfigs = configs;
+    }
+
+    /** Queries the effect, one binder round trip per int and two per string. */
+    static DtsDiagnostics fetch(DtsAudio audio) {
+        return new DtsDiagnostics(audio.isLicenseValid(), audio.getDSECTokens(),
+                audio.getVersions(), audio.getCustomerConfigs());
+    }
+
+    /**
+     * Returns the persisted diagnostics if they were saved on the same build, or
+     * null. An invalid license is never trusted, so that is checked again.
+     */
+    static DtsDiagnostics load(SharedPreferences prefs, String fingerprint) {
+        if (!fingerprint.equals(prefs.getString(KEY_FINGERPRINT, null))
+                || !prefs.getBoolean(KEY_LICENSED, false)) {
+            return null;
+        }
+        return new DtsDiagnostics(true, prefs.getString(KEY_TOKENS, ""),
+                prefs.getString(KEY_VERSIONS, ""), prefs.getString(KEY_CONFIGS, ""));
+    }
+
+    void save(SharedPreferences prefs, String fingerprint) {
+        prefs.edit()
+                .putString(KEY_FINGERPRINT, fingerprint)
+                .putBoolean(KEY_LICENSED, mLicensed)
+                .putString(KEY_TOKENS, mTokens)
+                .putString(KEY_VERSIONS, mVersions)
+                .putString(KEY_CONFIGS, mConfigs)
+                .apply();
+    }
+
+    public boolean isLicensed() {
+        return mLicensed;
+    }
+
+    public String getTokens() {
+        return mTokens;
+    }
+
+    public String getVersions() {
+        return mVersions;
+    }
+
+    public String getConfigs() {
+        return mConfigs;
+    }
+
+    @Override
+    public String toString() {
+        return "licensed=" + mLicensed + " tokens=" + mTokens + " versions=" + mVersions
+                + " configs=" + mConfigs;
+    }
+}
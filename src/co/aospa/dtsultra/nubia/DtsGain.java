@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+/**
+ * EQ gain conversions and serialization. Plain Java, shared with the host-side
+ * benchmarks.
+ */
+final class DtsGain {
+    /* Eagle gain of 0 dB */
+    public static final int EAGLE_UNITY = 4096;
+
+    private DtsGain() {}
+
+    public static int toDb(int gain) {
+        return (int) Math.round(Math.log10(gain / (double) EAGLE_UNITY) * 20.);
+    }
+
+    public static int toEagleGain(int db) {
+        return (int) (Math.pow(10., db / 20.) * EAGLE_UNITY);
+    }
+
+    public static String eqToString(int[] eq) {
+        return Arrays.stream(eq).mapToObj(String::valueOf).collect(Collectors.joining(";"));
+    }
+
+    public static int[] eqFromString(String values) {
+        return values.isEmpty() ? null : Arrays.stream(values.split(";")).mapToInt(Integer::parseInt).toArray();
+    }
+}
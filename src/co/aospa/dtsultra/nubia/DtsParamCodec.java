@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import co.aospa.dtsultra.nubia.DtsConstants.DtsSystemComm;
+
+/**
+ * Marshals DTS commands into native-ordered scratch buffers indexed by their size
+ * in ints, so steady-state parameter calls don't allocate.
+ *
+ * Not thread safe, each instance must only be used from one thread.
+ */
+final class DtsParamCodec {
+    private static final int MAX_SCRATCH_INTS = 12;
+    private final ByteBuffer[] mCmdScratch = new ByteBuffer[MAX_SCRATCH_INTS + 1];
+    private final ByteBuffer[] mValueScratch = new ByteBuffer[MAX_SCRATCH_INTS + 1];
+    private final EffectMetrics mMetrics;
+    private final TrafficRecorder mRecorder;
+    private final boolean mTimed;
+
+    DtsParamCodec() {
+        this(null, null);
+    }
+
+    DtsParamCodec(EffectMetrics metrics) {
+        this(metrics, null);
+    }
+
+    /** Records every call into metrics and recorder, unless null. */
+    DtsParamCodec(EffectMetrics metrics, TrafficRecorder recorder) {
+        mMetrics = metrics;
+        mRecorder = recorder;
+        mTimed = metrics != null || recorder != null;
+    }
+
+    private static ByteBuffer scratch(ByteBuffer[] pool, int ints) {
+        if (ints > MAX_SCRATCH_INTS) {
+            /* Nothing on the hot paths is this large, not worth pooling */
+            return ByteBuffer.allocate(ints * 4).order(ByteOrder.nativeOrder());
+        }
+        ByteBuffer buffer = pool[ints];
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(ints * 4).order(ByteOrder.nativeOrder());
+            pool[ints] = buffer;
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    public ByteBuffer command(DtsSystemComm param, int[] data) {
+        ByteBuffer cmd = scratch(mCmdScratch, data != null ? data.length + 1 : 1);
+        cmd.putInt(param.getNum());
+        if (data != null) {
+            for (int v : data) {
+                cmd.putInt(v);
+            }
+        }
+        return cmd;
+    }
+
+    /** Returns a cleared value buffer of the given size, valid until the next call. */
+    public ByteBuffer value(int ints) {
+        return scratch(mValueScratch, ints);
+    }
+
+    public int set(EffectBackend backend, DtsSystemComm param, ByteBuffer value) {
+        final long start = mTimed ? System.nanoTime() : 0;
+        int ret = backend.setParameter(command(param, null).array(), value.array());
+        if (mTimed) {
+            final long ns = System.nanoTime() - start;
+            if (mMetrics != null) {
+                mMetrics.record(param, ns, ret);
+            }
+            if (mRecorder != null) {
+                mRecorder.recordSet(param, value, start, ns, ret);
+            }
+        }
+        return ret;
+    }
+
+    /** Reads the raw reply into result, returning its length or a negative error code. */
+    public int get(EffectBackend backend, DtsSystemComm param, int[] data, byte[] result) {
+        final long start = mTimed ? System.nanoTime() : 0;
+        int ret = backend.getParameter(command(param, data).array(), result);
+        if (mTimed) {
+            final long ns = System.nanoTime() - start;
+            if (mMetrics != null) {
+                mMetrics.record(param, ns, ret);
+            }
+            if (mRecorder != null) {
+                mRecorder.recordGet(param, data, start, ns, ret);
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.preference.PreferenceDataStore;
+
+/**
+ * Lets the settings screen read and write {@link DtsStore} through the usual
+ * preference keys. Keys the store doesn't know go to the shared preferences.
+ */
+final class DtsPreferenceDataStore extends PreferenceDataStore {
+    private static final String TAG = "DtsPreferenceDataStore";
+
+    private final DtsStore mStore;
+    private final SharedPreferences mPrefs;
+
+    DtsPreferenceDataStore(DtsStore store, SharedPreferences prefs) {
+        mStore = store;
+        mPrefs = prefs;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        if (DtsSettingsFragment.PREF_ENABLE.equals(key)) {
+            return mStore.isEnabled(defValue);
+        }
+        return mPrefs.getBoolean(key, defValue);
+    }
+
+    @Override
+    public void putBoolean(String key, boolean value) {
+        if (DtsSettingsFragment.PREF_ENABLE.equals(key)) {
+            mStore.setEnabled(value);
+        } else {
+            mPrefs.edit().putBoolean(key, value).apply();
+        }
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        return switch (key) {
+            case DtsSettingsFragment.PREF_PROFILE -> Integer.toString(mStore.getProfile());
+            case DtsSettingsFragment.PREF_PRESET -> Integer.toString(mStore.getPreset());
+            case DtsSettingsFragment.PREF_EQ -> {
+                int[] gains = mStore.getGains();
+                yield gains != null ? DtsGain.eqToString(gains) : defValue;
+            }
+            default -> mPrefs.getString(key, defValue);
+        };
+    }
+
+    @Override
+    public void putString(String key, String value) {
+        try {
+            switch (key) {
+                case DtsSettingsFragment.PREF_PROFILE -> mStore.setProfile(Integer.parseInt(value));
+                case DtsSettingsFragment.PREF_PRESET -> mStore.setPreset(Integer.parseInt(value));
+                /* Curves are saved per route and profile, by DtsUtils.saveEq() */
+                case DtsSettingsFragment.PREF_EQ -> { }
+                default -> mPrefs.edit().putString(key, value).apply();
+            }
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Invalid value for " + key + ": " + value, e);
+        }
+    }
+}
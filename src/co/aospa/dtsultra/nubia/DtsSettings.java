@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import co.aospa.dtsultra.nubia.DtsConstants.AudioRoute;
+
+/**
+ * Immutable, pre-parsed snapshot of the saved DTS settings, so audio event
+ * handling never has to go through the store or string preferences.
+ */
+final class DtsSettings {
+    private static final String TAG = "DtsSettings";
+
+    static final String DEFAULT_PROFILE = "3" /* music */;
+    static final String DEFAULT_PRESET = "3" /* off */;
+
+    private final boolean mHasEnabled;
+    private final boolean mEnabled;
+    private final int mProfile;
+    private final int mPreset;
+    private final int[] mGains;
+    /* Per route custom gains, [route][profile index], null where unset */
+    private final int[][][] mRouteGains;
+    private final boolean mAutoProfile;
+    /* Package name to profile */
+    private final Map<String, Integer> mAppProfiles;
+
+    private DtsSettings(boolean hasEnabled, boolean enabled, int profile, int preset, int[] gains,
+            int[][][] routeGains, boolean autoProfile, Map<String, Integer> appProfiles) {
+        mHasEnabled = hasEnabled;
+        mEnabled = enabled;
+        mProfile = profile;
+        mPreset = preset;
+        mGains = gains;
+        mRouteGains = routeGains;
+        mAutoProfile = autoProfile;
+        mAppProfiles = appProfiles;
+    }
+
+    static DtsSettings of(boolean hasEnabled, boolean enabled, int profile, int preset,
+            int[] gains, int[][][] routeGains, boolean autoProfile,
+            Map<String, Integer> appProfiles) {
+        return new DtsSettings(hasEnabled, enabled, profile, preset, gains, routeGains,
+                autoProfile, appProfiles);
+    }
+
+    /**
+     * Reads the binary store, plus the options that still live in preferences.
+     * The device's app rules apply until the user has set any of their own.
+     */
+    public static DtsSettings fromStore(DtsStore store, SharedPreferences prefs,
+            String defaultAppProfiles) {
+        return store.snapshot(prefs.getBoolean(DtsSettingsFragment.PREF_AUTO_PROFILE, false),
+                parseAppProfiles(prefs.getString(DtsSettingsFragment.PREF_APP_PROFILES,
+                        defaultAppProfiles)));
+    }
+
+    /** Parses the string preferences used before {@link DtsStore}, for migration. */
+    public static DtsSettings fromPreferences(SharedPreferences prefs) {
+        final boolean hasEnabled = prefs.contains(DtsSettingsFragment.PREF_ENABLE);
+        final boolean enabled = prefs.getBoolean(DtsSettingsFragment.PREF_ENABLE, false);
+        final int profile = parseInt(prefs.getString(DtsSettingsFragment.PREF_PROFILE, DEFAULT_PROFILE),
+                DEFAULT_PROFILE);
+        final int preset = parseInt(prefs.getString(DtsSettingsFragment.PREF_PRESET, DEFAULT_PRESET),
+                DEFAULT_PRESET);
+
+        final int[] gains = parseEq(prefs.getString(DtsSettingsFragment.PREF_EQ, ""));
+        final int[][][] routeGains =
+                new int[EqStateStore.ROUTES.length][DtsConstants.PROFILES.length][];
+        for (AudioRoute route : EqStateStore.ROUTES) {
+            for (int i = 0; i < DtsConstants.PROFILES.length; i++) {
+                String key = DtsSettingsFragment.routeEqKey(route, DtsConstants.PROFILES[i]);
+                routeGains[route.ordinal()][i] = parseEq(prefs.getString(key, ""));
+            }
+        }
+
+        final boolean autoProfile = prefs.getBoolean(DtsSettingsFragment.PREF_AUTO_PROFILE, false);
+        final Map<String, Integer> appProfiles =
+                parseAppProfiles(prefs.getString(DtsSettingsFragment.PREF_APP_PROFILES, ""));
+
+        return new DtsSettings(hasEnabled, enabled, profile, preset, gains, routeGains,
+                autoProfile, appProfiles);
+    }
+
+    private static int[] parseEq(String values) {
+        if (values == null || values.isEmpty()) {
+            return null;
+        }
+        int[] gains;
+        try {
+            gains = DtsGain.eqFromString(values);
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Invalid saved EQ: " + values);
+            return null;
+        }
+        if (gains.length != DtsConstants.EQ_BAND_COUNT) {
+            Log.e(TAG, "Saved EQ has " + gains.length + " bands, ignoring");
+            return null;
+        }
+        return gains;
+    }
+
+    /* Format is "package=profile;package=profile" */
+    static Map<String, Integer> parseAppProfiles(String values) {
+        if (values == null || values.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final Map<String, Integer> rules = new LinkedHashMap<>();
+        for (String rule : values.split(";")) {
+            int sep = rule.indexOf('=');
+            try {
+                int profile = Integer.parseInt(rule.substring(sep + 1));
+                if (sep > 0 && DtsConstants.profileIndex(profile) >= 0) {
+                    rules.put(rule.substring(0, sep), profile);
+                    continue;
+                }
+            } catch (NumberFormatException e) {
+                // Logged below
+            }
+            Log.e(TAG, "Invalid app profile rule: " + rule);
+        }
+        return Collections.unmodifiableMap(rules);
+    }
+
+    static String appProfilesToString(Map<String, Integer> rules) {
+        final StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Integer> rule : rules.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(';');
+            }
+            sb.append(rule.getKey()).append('=').append(rule.getValue());
+        }
+        return sb.toString();
+    }
+
+    private static int parseInt(String value, String defaultValue) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Invalid saved value: " + value);
+            return Integer.parseInt(defaultValue);
+        }
+    }
+
+    public boolean hasEnabled() {
+        return mHasEnabled;
+    }
+
+    public boolean isEnabled(boolean defaultValue) {
+        return mHasEnabled ? mEnabled : defaultValue;
+    }
+
+    public int getProfile() {
+        return mProfile;
+    }
+
+    public int getPreset() {
+        return mPreset;
+    }
+
+    /**
+     * Returns the saved custom EQ gains, or null if there are none. The array is
+     * shared and must not be modified.
+     */
+    public int[] getGains() {
+        return mGains;
+    }
+
+    /**
+     * Returns the saved custom EQ gains of the given route and profile, falling
+     * back to the shared custom EQ. The array is shared and must not be modified.
+     */
+    public int[] getGains(AudioRoute route, int profile) {
+        int[] gains = getOwnGains(route, profile);
+        return gains != null ? gains : mGains;
+    }
+
+    /** Same as {@link #getGains(AudioRoute, int)}, without the fallback. */
+    public int[] getOwnGains(AudioRoute route, int profile) {
+        int i = DtsConstants.profileIndex(profile);
+        return i >= 0 ? mRouteGains[route.ordinal()][i] : null;
+    }
+
+    /** Whether the profile follows the app that is playing. */
+    public boolean isAutoProfile() {
+        return mAutoProfile;
+    }
+
+    /** Returns the per-app profile rules, by package name. */
+    public Map<String, Integer> getAppProfiles() {
+        return mAppProfiles;
+    }
+
+    @Override
+    public String toString() {
+        return "enabled=" + (mHasEnabled ? mEnabled : "unset") + " profile=" + mProfile
+                + " preset=" + mPreset + " gains=" + Arrays.toString(mGains)
+                + " auto=" + mAutoProfile + " apps=" + mAppProfiles.size();
+    }
+}
@@ -6,7 +6,13 @@
 
 package co.aospa.dtsultra.nubia;
 
+import android.app.AlertDialog;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.widget.CompoundButton;
 
@@ -15,10 +21,17 @@ import androidx.preference.ListPreference;
 import androidx.preference.Preference;
 import androidx.preference.Preference.OnPreferenceChangeListener;
 import androidx.preference.PreferenceFragment;
+import androidx.preference.SwitchPreference;
 
 import com.android.settingslib.widget.MainSwitchPreference;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 public class DtsSettingsFragment extends PreferenceFragment implements
         OnPreferenceChangeListener, CompoundButton.OnCheckedChangeListener, Preference.SummaryProvider<ListPreference>, EqualizerPreference.OnEqBandChangeListener {
@@ -28,23 +41,37 @@ public class DtsSettingsFragment extends PreferenceFragment implements
     public static final String PREF_PROFILE = "dtsultra_profile";
     public static final String PREF_PRESET = "dtsultra_preset";
     public static final String PREF_EQ = "dtsultra_custom_eq";
+    public static final String PREF_AUTO_PROFILE = "dtsultra_auto_profile";
+    public static final String PREF_APP_PROFILES = "dtsultra_app_profiles";
+
+    /**
+     * Custom EQ of one route and profile, falls back to {@link #PREF_EQ} when unset.
+     * Only read when migrating to {@link DtsStore}.
+     */
+    public static String routeEqKey(DtsConstants.AudioRoute route, int profile) {
+        return PREF_EQ + "_" + route.name().toLowerCase(Locale.ROOT) + "_" + profile;
+    }
 
     private MainSwitchPreference mSwitchBar;
     private ListPreference mProfilePref, mPresetPref;
+    private SwitchPreference mAutoProfilePref;
+    private Preference mAppProfilesPref;
     private EqualizerPreference mEqPref;
     private DtsUtils mDtsUtils;
+    private EqWriteScheduler mEqScheduler;
     private int mCurrentProfile = -1;
     private int mCurrentPreset = -1;
     @Override
     public void onCreatePreferences(Bundle savedInstanceState, String rootKey) {
-        addPreferencesFromResource(R.xml.dts_settings);
-
         mDtsUtils = DtsUtils.getInstance(getActivity());
-        final boolean dtsOn = mDtsUtils.getDtsOn();
+        /* Must be set before inflating, so the preferences bind to it */
+        getPreferenceManager().setPreferenceDataStore(mDtsUtils.getPreferenceDataStore());
+        addPreferencesFromResource(R.xml.dts_settings);
 
+        /* Start from the saved state, the effect state is reconciled below */
         mSwitchBar = findPreference(PREF_ENABLE);
+        final boolean dtsOn = mSwitchBar.isChecked();
         mSwitchBar.addOnSwitchChangeListener(this);
-        mSwitchBar.setChecked(dtsOn);
 
         mProfilePref = findPreference(PREF_PROFILE);
         mProfilePref.setOnPreferenceChangeListener(this);
@@ -52,6 +79,17 @@ public class DtsSettingsFragment extends PreferenceFragment implements
         mProfilePref.setSummaryProvider(this);
         mCurrentProfile = Integer.parseInt(mProfilePref.getValue());
 
+        mAutoProfilePref = findPreference(PREF_AUTO_PROFILE);
+        mAutoProfilePref.setEnabled(dtsOn);
+
+        mAppProfilesPref = findPreference(PREF_APP_PROFILES);
+        mAppProfilesPref.setOnPreferenceClickListener(preference -> {
+            showAppPicker();
+            return true;
+        });
+        mAppProfilesPref.setEnabled(dtsOn);
+        updateAppProfilesSummary(mDtsUtils.getAppProfiles());
+
         mPresetPref = findPreference(PREF_PRESET);
         mPresetPref.setOnPreferenceChangeListener(this);
         mPresetPref.setEnabled(dtsOn);
@@ -63,11 +101,28 @@ public class DtsSettingsFragment extends PreferenceFragment implements
         mEqPref.setEqBandChangeListener(this);
         mEqPref.setEnabled(dtsOn);
 
-        updateProfileSpecificPrefs();
+        /* Seeded with the shown curve, so the first drag doesn't flatten the other bands */
+        mEqScheduler = new EqWriteScheduler(new Handler(Looper.getMainLooper()),
+                gains -> mDtsUtils.setEq(gains));
+        final int[] eq = mEqPref.getEq();
+        if (eq != null && eq.length == DtsConstants.EQ_BAND_COUNT) {
+            mEqScheduler.setGains(eq);
+        }
+
+        /* Nothing changed yet, so there is nothing to write back */
+        updateProfileSpecificPrefs(false);
+
+        mDtsUtils.refreshSnapshot().thenAcceptAsync(snapshot -> {
+            boolean on = mDtsUtils.getState().isOn();
+            if (isAdded() && on != mSwitchBar.isChecked()) {
+                mSwitchBar.setChecked(on);
+            }
+        }, getContext().getMainExecutor());
     }
 
     @Override
     public void onDestroyView() {
+        mEqScheduler.flush();
         super.onDestroyView();
     }
 
@@ -99,28 +154,98 @@ public class DtsSettingsFragment extends PreferenceFragment implements
     public void onCheckedChanged(CompoundButton switchView, boolean isChecked) {
         mDtsUtils.setDtsOn(isChecked);
         mProfilePref.setEnabled(isChecked);
+        mAutoProfilePref.setEnabled(isChecked);
+        mAppProfilesPref.setEnabled(isChecked);
         mPresetPref.setEnabled(isChecked);
         mEqPref.setEnabled(isChecked);
-
-        if (isChecked) {
-            DtsUtils.reset();
-            mDtsUtils = DtsUtils.getInstance(getContext());
-        }
     }
 
     private void updateProfileSpecificPrefs() {
-        int[] eq = null;
+        updateProfileSpecificPrefs(true);
+    }
+
+    private void updateProfileSpecificPrefs(boolean apply) {
         if (mCurrentProfile == DtsConstants.PROFILE_MUSIC && mCurrentPreset == DtsConstants.PRESET_CUSTOM) {
             mEqPref.setVisible(true);
-            eq = mEqPref.getEq();
+            /* Show the curve of the current output */
+            mDtsUtils.getCustomEq().thenAcceptAsync(eq -> {
+                if (isAdded() && eq != null) {
+                    mEqPref.setEq(eq);
+                    mEqScheduler.setGains(eq);
+                }
+            }, getContext().getMainExecutor());
         } else {
             mEqPref.setVisible(false);
         }
 
-        mDtsUtils.setProfile(mCurrentProfile, mCurrentPreset, eq);
+        if (apply) {
+            mDtsUtils.setProfile(mCurrentProfile, mCurrentPreset, null);
+        }
         mPresetPref.setVisible(mCurrentProfile == DtsConstants.PROFILE_MUSIC);
     }
 
+    private void updateAppProfilesSummary(Map<String, Integer> rules) {
+        mAppProfilesPref.setSummary(getResources().getQuantityString(
+                R.plurals.dtsultra_app_profiles_summary, rules.size(), rules.size()));
+    }
+
+    /* Lists the launchable apps, with the profile of those that have a rule */
+    private void showAppPicker() {
+        final PackageManager pm = getContext().getPackageManager();
+        final List<ResolveInfo> activities = pm.queryIntentActivities(
+                new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_LAUNCHER), 0);
+        activities.sort(new ResolveInfo.DisplayNameComparator(pm));
+
+        final Map<String, Integer> rules = mDtsUtils.getAppProfiles();
+        final Set<String> seen = new HashSet<>();
+        final List<String> packages = new ArrayList<>();
+        final List<CharSequence> labels = new ArrayList<>();
+        for (ResolveInfo info : activities) {
+            String packageName = info.activityInfo.packageName;
+            if (!seen.add(packageName)) {
+                continue;
+            }
+            CharSequence label = info.loadLabel(pm);
+            Integer profile = rules.get(packageName);
+            packages.add(packageName);
+            labels.add(profile != null ? getString(R.string.dtsultra_app_profile_item, label,
+                    profileName(profile)) : label);
+        }
+
+        new AlertDialog.Builder(getContext())
+                .setTitle(R.string.dtsultra_app_profiles_title)
+                .setItems(labels.toArray(new CharSequence[0]), (dialog, which) ->
+                        showProfilePicker(packages.get(which), rules.get(packages.get(which))))
+                .show();
+    }
+
+    private void showProfilePicker(String packageName, Integer current) {
+        final CharSequence[] values = mProfilePref.getEntryValues();
+        final CharSequence[] entries = new CharSequence[values.length + 1];
+        entries[0] = getString(R.string.dtsultra_app_profile_auto);
+        int checked = 0;
+        for (int i = 0; i < values.length; i++) {
+            entries[i + 1] = mProfilePref.getEntries()[i];
+            if (current != null && current == Integer.parseInt(values[i].toString())) {
+                checked = i + 1;
+            }
+        }
+
+        new AlertDialog.Builder(getContext())
+                .setTitle(R.string.dtsultra_profile_title)
+                .setSingleChoiceItems(entries, checked, (dialog, which) -> {
+                    int profile = which == 0 ? -1 : Integer.parseInt(values[which - 1].toString());
+                    updateAppProfilesSummary(mDtsUtils.setAppProfile(packageName, profile));
+                    dialog.dismiss();
+                })
+                .show();
+    }
+
+    private CharSequence profileName(int profile) {
+        int i = mProfilePref.findIndexOfValue(Integer.toString(profile));
+        return i >= 0 ? mProfilePref.getEntries()[i] : Integer.toString(profile);
+    }
+
     @Override
     public CharSequence provideSummary(@NonNull ListPreference preference) {
         return preference.getEntry();
@@ -129,13 +254,23 @@ public class DtsSettingsFragment extends PreferenceFragment implements
     @Override
     public void onEqBandChange(int band, int gain) {
         dlog(band + " -> " + gain);
-        mDtsUtils.setEqBand(band, gain);
+        mEqScheduler.onBandChange(band, gain);
+    }
+
+    @Override
+    public void onEqBandChangeFinished(int[] gains) {
+        mEqScheduler.flush();
+        mDtsUtils.saveEq(gains);
+        dlog("Band changes: " + mEqScheduler.getBandChangeCount()
+                + ", coalesced: " + mEqScheduler.getCoalescedCount());
     }
 
     @Override
     public void onEqChange(int[] gains) {
         dlog("New gains: " + Arrays.toString(gains));
+        mEqScheduler.setGains(gains);
         mDtsUtils.setEq(gains);
+        mDtsUtils.saveEq(gains);
     }
 
     private static void dlog(String msg) {
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+/**
+ * Immutable snapshot of what was last applied to the effect, with display names
+ * already resolved, so readers on other threads never have to wait on it.
+ */
+final class DtsState {
+    private final boolean mOn;
+    private final int mProfile;
+    private final int mPreset;
+    private final String mProfileName;
+    private final String mPresetName;
+
+    DtsState(boolean on, int profile, int preset, String profileName, String presetName) {
+        mOn = on;
+        mProfile = profile;
+        mPreset = preset;
+        mProfileName = profileName;
+        mPresetName = presetName;
+    }
+
+    public boolean isOn() {
+        return mOn;
+    }
+
+    public int getProfile() {
+        return mProfile;
+    }
+
+    public int getPreset() {
+        return mPreset;
+    }
+
+    /** Returns the profile's display name, or null if it is unknown. */
+    public String getProfileName() {
+        return mProfileName;
+    }
+
+    /** Returns the preset's display name, or null if the profile has no presets. */
+    public String getPresetName() {
+        return mPresetName;
+    }
+
+    boolean matches(boolean on, int profile, int preset) {
+        return mOn == on && mProfile == profile && mPreset == preset;
+    }
+
+    @Override
+    public String toString() {
+        return "on=" + mOn + " profile=" + mProfile + " preset=" + mPreset;
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import co.aospa.dtsultra.nubia.DtsConstants.AudioRoute;
+
+/**
+ * Enable flag, profile, preset and custom EQ curves, kept in memory and persisted
+ * to a small fixed-size binary file. Changes made within {@link #WRITE_DELAY_MS}
+ * of each other are written together on a background handler, through
+ * {@link AtomicFile}, so a crash mid-write leaves the previous version in place.
+ *
+ * File layout, big endian:
+ * <pre>
+ *   int magic, int version
+ *   byte enabled (-1 unset, 0, 1), int profile, int preset
+ *   int routes, int profiles, int bands
+ *   byte present, int[bands]               shared custom EQ
+ *   (byte present, int[bands])[routes][profiles]   per route custom EQ
+ * </pre>
+ * The dimensions are stored so files stay readable when routes are added.
+ * The shared curve follows the last one saved for any route, it is what routes
+ * without their own start from.
+ *
+ * Thread safe. The file is read on the write handler, calls block until it is.
+ */
+final class DtsStore {
+    private static final String TAG = "DtsStore";
+
+    static final String FILE_NAME = "dtsultra_state.bin";
+    private static final int MAGIC = 0x44545355 /* DTSU */;
+    private static final int VERSION = 1;
+    /* Each write is an fsync, let bursts of changes settle first */
+    static final long WRITE_DELAY_MS = 500;
+
+    private static final int ROUTES = EqStateStore.ROUTES.length;
+    private static final int PROFILES = DtsConstants.PROFILES.length;
+    private static final int BANDS = DtsConstants.EQ_BAND_COUNT;
+    private static final int CURVE_SIZE = 1 + BANDS * 4;
+    private static final int FILE_SIZE = 4 + 4 + 1 + 4 + 4 + 12 + CURVE_SIZE * (1 + ROUTES * PROFILES);
+
+    interface Listener {
+        /** Called on the thread that made the change. */
+        void onStoreChanged(DtsStore store);
+    }
+
+    private final AtomicFile mFile;
+    private final Handler mHandler;
+    private final Runnable mWrite = this::write;
+    private final List<Listener> mListeners = new ArrayList<>();
+
+    /* Guarded by this */
+    private boolean mLoaded = false;
+    private int mEnabled = -1;
+    private int mProfile = Integer.parseInt(DtsSettings.DEFAULT_PROFILE);
+    private int mPreset = Integer.parseInt(DtsSettings.DEFAULT_PRESET);
+    private int[] mGains;
+    private final int[][][] mRouteGains = new int[ROUTES][PROFILES][];
+    /* Only touched by write(), on the write handler */
+    private final byte[] mWriteBuffer = new byte[FILE_SIZE];
+
+    private volatile long mWrites = 0;
+
+    private DtsStore(File file, Handler handler) {
+        mFile = new AtomicFile(file);
+        mHandler = handler;
+    }
+
+    /**
+     * Loads the store from dir on the given handler, migrating the old string
+     * preferences on first use. Writes are done there too, so it should not be
+     * one that is waited on.
+     */
+    static DtsStore open(File dir, Handler handler, SharedPreferences legacy) {
+        DtsStore store = new DtsStore(new File(dir, FILE_NAME), handler);
+        handler.post(() -> store.load(legacy));
+        return store;
+    }
+
+    public synchronized void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public synchronized boolean hasEnabled() {
+        awaitLoadedLocked();
+        return mEnabled >= 0;
+    }
+
+    public synchronized boolean isEnabled(boolean defaultValue) {
+        awaitLoadedLocked();
+        return mEnabled >= 0 ? mEnabled > 0 : defaultValue;
+    }
+
+    public synchronized int getProfile() {
+        awaitLoadedLocked();
+        return mProfile;
+    }
+
+    public synchronized int getPreset() {
+        awaitLoadedLocked();
+        return mPreset;
+    }
+
+    /** Returns a copy of the shared custom EQ, or null. */
+    public synchronized int[] getGains() {
+        awaitLoadedLocked();
+        return mGains != null ? mGains.clone() : null;
+    }
+
+    public void setEnabled(boolean enabled) {
+        synchronized (this) {
+            awaitLoadedLocked();
+            if (mEnabled == (enabled ? 1 : 0)) {
+                return;
+            }
+            mEnabled = enabled ? 1 : 0;
+        }
+        changed();
+    }
+
+    public void setProfile(int profile) {
+        synchronized (this) {
+            awaitLoadedLocked();
+            if (mProfile == profile) {
+                return;
+            }
+            mProfile = profile;
+        }
+        changed();
+    }
+
+    public void setPreset(int preset) {
+        synchronized (this) {
+            awaitLoadedLocked();
+            if (mPreset == preset) {
+                return;
+            }
+            mPreset = preset;
+        }
+        changed();
+    }
+
+    public void setGains(int[] gains) {
+        if (gains.length != BANDS) {
+            throw new IllegalArgumentException("Expected " + BANDS + " bands");
+        }
+        synchronized (this) {
+            awaitLoadedLocked();
+            if (Arrays.equals(mGains, gains)) {
+                return;
+            }
+            mGains = gains.clone();
+        }
+        changed();
+    }
+
+    public void setGains(AudioRoute route, int profile, int[] gains) {
+        int i = DtsConstants.profileIndex(profile);
+        if (i < 0 || gains.length != BANDS) {
+            throw new IllegalArgumentException("Bad profile " + profile + " or band count");
+        }
+        synchronized (this) {
+            awaitLoadedLocked();
+            int[] current = mRouteGains[route.ordinal()][i];
+            if (Arrays.equals(current, gains)) {
+                return;
+            }
+            if (current == null) {
+                mRouteGains[route.ordinal()][i] = gains.clone();
+            } else {
+                System.arraycopy(gains, 0, current, 0, BANDS);
+            }
+            if (mGains == null) {
+                mGains = gains.clone();
+            } else {
+                System.arraycopy(gains, 0, mGains, 0, BANDS);
+            }
+        }
+        changed();
+    }
+
+    /** Returns an immutable snapshot, with the given values for what lives elsewhere. */
+    public synchronized DtsSettings snapshot(boolean autoProfile, Map<String, Integer> appProfiles) {
+        awaitLoadedLocked();
+        int[][][] routeGains = new int[ROUTES][PROFILES][];
+        for (int r = 0; r < ROUTES; r++) {
+            for (int i = 0; i < PROFILES; i++) {
+                int[] gains = mRouteGains[r][i];
+                routeGains[r][i] = gains != null ? gains.clone() : null;
+            }
+        }
+        return DtsSettings.of(mEnabled >= 0, mEnabled > 0, mProfile, mPreset,
+                mGains != null ? mGains.clone() : null, routeGains, autoProfile, appProfiles);
+    }
+
+    public long getWriteCount() {
+        return mWrites;
+    }
+
+    private void changed() {
+        if (!mHandler.hasCallbacks(mWrite)) {
+            mHandler.postDelayed(mWrite, WRITE_DELAY_MS);
+        }
+        final Listener[] listeners;
+        synchronized (this) {
+            listeners = mListeners.toArray(new Listener[0]);
+        }
+        for (Listener listener : listeners) {
+            listener.onStoreChanged(this);
+        }
+    }
+
+    private void load(SharedPreferences legacy) {
+        if (!read()) {
+            migrate(legacy);
+        }
+        synchronized (this) {
+            mLoaded = true;
+            notifyAll();
+        }
+    }
+
+    private void awaitLoadedLocked() {
+        while (!mLoaded) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // Keep waiting, there is nothing to return before the file is read
+            }
+        }
+    }
+
+    private boolean read() {
+        final byte[] data;
+        try {
+            data = mFile.readFully();
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read " + mFile.getBaseFile(), e);
+            return false;
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            if (buffer.getInt() != MAGIC) {
+                Log.e(TAG, "Bad magic, ignoring " + mFile.getBaseFile());
+                return false;
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                Log.e(TAG, "Unknown version " + version + ", ignoring " + mFile.getBaseFile());
+                return false;
+            }
+            synchronized (this) {
+                mEnabled = buffer.get();
+                mProfile = buffer.getInt();
+                mPreset = buffer.getInt();
+                int routes = buffer.getInt();
+                int profiles = buffer.getInt();
+                int bands = buffer.getInt();
+                if (bands != BANDS) {
+                    Log.e(TAG, "Saved EQ has " + bands + " bands, ignoring curves");
+                    return true;
+                }
+                mGains = readCurve(buffer);
+                for (int r = 0; r < routes; r++) {
+                    for (int i = 0; i < profiles; i++) {
+                        int[] gains = readCurve(buffer);
+                        if (r < ROUTES && i < PROFILES) {
+                            mRouteGains[r][i] = gains;
+                        }
+                    }
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            Log.e(TAG, "Truncated " + mFile.getBaseFile() + ", keeping what was read");
+        }
+        return true;
+    }
+
+    private static int[] readCurve(ByteBuffer buffer) {
+        boolean present = buffer.get() != 0;
+        int[] gains = new int[BANDS];
+        for (int b = 0; b < BANDS; b++) {
+            gains[b] = buffer.getInt();
+        }
+        return present ? gains : null;
+    }
+
+    private static void writeCurve(ByteBuffer buffer, int[] gains) {
+        buffer.put((byte) (gains != null ? 1 : 0));
+        for (int b = 0; b < BANDS; b++) {
+            buffer.putInt(gains != null ? gains[b] : 0);
+        }
+    }
+
+    private void migrate(SharedPreferences legacy) {
+        final DtsSettings old = DtsSettings.fromPreferences(legacy);
+        synchronized (this) {
+            mEnabled = old.hasEnabled() ? (old.isEnabled(false) ? 1 : 0) : -1;
+            mProfile = old.getProfile();
+            mPreset = old.getPreset();
+            mGains = old.getGains() != null ? old.getGains().clone() : null;
+            for (AudioRoute route : EqStateStore.ROUTES) {
+                for (int i = 0; i < PROFILES; i++) {
+                    int[] gains = old.getOwnGains(route, DtsConstants.PROFILES[i]);
+                    mRouteGains[route.ordinal()][i] = gains != null ? gains.clone() : null;
+                }
+            }
+        }
+        Log.i(TAG, "Migrated settings from preferences: " + old);
+
+        /* Persist before dropping the old keys, so nothing is lost on a crash */
+        if (write()) {
+            SharedPreferences.Editor editor = legacy.edit()
+                    .remove(DtsSettingsFragment.PREF_ENABLE)
+                    .remove(DtsSettingsFragment.PREF_PROFILE)
+                    .remove(DtsSettingsFragment.PREF_PRESET)
+                    .remove(DtsSettingsFragment.PREF_EQ);
+            for (AudioRoute route : EqStateStore.ROUTES) {
+                for (int profile : DtsConstants.PROFILES) {
+                    editor.remove(DtsSettingsFragment.routeEqKey(route, profile));
+                }
+            }
+            editor.apply();
+        }
+    }
+
+    private boolean write() {
+        final ByteBuffer buffer = ByteBuffer.wrap(mWriteBuffer);
+        synchronized (this) {
+            buffer.putInt(MAGIC).putInt(VERSION);
+            buffer.put((byte) mEnabled).putInt(mProfile).putInt(mPreset);
+            buffer.putInt(ROUTES).putInt(PROFILES).putInt(BANDS);
+            writeCurve(buffer, mGains);
+            for (int r = 0; r < ROUTES; r++) {
+                for (int i = 0; i < PROFILES; i++) {
+                    writeCurve(buffer, mRouteGains[r][i]);
+                }
+            }
+        }
+
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            out.write(mWriteBuffer, 0, buffer.position());
+            mFile.finishWrite(out);
+            mWrites++;
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + mFile.getBaseFile(), e);
+            if (out != null) {
+                mFile.failWrite(out);
+            }
+            return false;
+        }
+    }
+}
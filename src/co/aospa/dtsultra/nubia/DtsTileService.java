@@ -6,38 +6,90 @@
 
 package co.aospa.dtsultra.nubia;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 import android.service.quicksettings.Tile;
 import android.service.quicksettings.TileService;
+import android.util.Log;
 
 public class DtsTileService extends TileService {
     private static final String TAG = "DtsTileService";
 
+    /* Time until the tile shows its state, should stay well under a frame */
+    private static final LatencyHistogram sOpenLatency = new LatencyHistogram("open");
+    private static final LatencyHistogram sClickLatency = new LatencyHistogram("click");
+
     @Override
     public void onStartListening() {
-        Tile tile = getQsTile();
+        final long start = System.nanoTime();
         DtsUtils dtsUtils = DtsUtils.getInstance(getApplicationContext());
-        if (dtsUtils.getDtsOn()) {
-            tile.setState(Tile.STATE_ACTIVE);
-        } else {
-            tile.setState(Tile.STATE_INACTIVE);
-        }
-        tile.setSubtitle(dtsUtils.getProfileName());
-        tile.updateTile();
+        final DtsState state = dtsUtils.getState();
+        updateTile(state);
+        sOpenLatency.recordSince(start);
+        dlog(sOpenLatency.toString());
+
+        /* The state may predate another client changing the effect */
+        dtsUtils.refreshSnapshot().thenAcceptAsync(snapshot -> {
+            DtsState current = dtsUtils.getState();
+            if (current != state) {
+                updateTile(current);
+            }
+        }, getMainExecutor());
         super.onStartListening();
     }
 
     @Override
     public void onClick() {
+        final long start = System.nanoTime();
+        DtsUtils dtsUtils = DtsUtils.getInstance(getApplicationContext());
         Tile tile = getQsTile();
+        final boolean on = tile != null
+                ? tile.getState() != Tile.STATE_ACTIVE : !dtsUtils.getState().isOn();
+        if (tile != null) {
+            tile.setState(on ? Tile.STATE_ACTIVE : Tile.STATE_INACTIVE);
+            tile.updateTile();
+        }
+        sClickLatency.recordSince(start);
+        dlog(sClickLatency.toString());
+
+        dtsUtils.setDtsOn(on).whenCompleteAsync((v, e) -> {
+            DtsState state = dtsUtils.getState();
+            if (e != null || state.isOn() != on) {
+                Log.w(TAG, "Failed to turn DTS " + (on ? "on" : "off") + ", reverting tile");
+            }
+            /* Also picks up the profile name, which may have changed meanwhile */
+            updateTile(state);
+        }, getMainExecutor());
+        super.onClick();
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("Tile: " + sOpenLatency);
+        pw.println("Tile: " + sClickLatency);
         DtsUtils dtsUtils = DtsUtils.getInstance(getApplicationContext());
-        if (dtsUtils.getDtsOn()) {
-            dtsUtils.setDtsOn(false);
-            tile.setState(Tile.STATE_INACTIVE);
-        } else {
-            dtsUtils.setDtsOn(true);
-            tile.setState(Tile.STATE_ACTIVE);
+        dtsUtils.dump(pw);
+        if (args != null && args.length > 0 && "traffic".equals(args[0])) {
+            File trace = dtsUtils.saveTraffic();
+            pw.println("Traffic trace: " + (trace != null ? trace : "not recording"));
+        }
+    }
+
+    private void updateTile(DtsState state) {
+        Tile tile = getQsTile();
+        if (tile == null) {
+            return;
         }
+        tile.setState(state.isOn() ? Tile.STATE_ACTIVE : Tile.STATE_INACTIVE);
+        tile.setSubtitle(state.getProfileName());
         tile.updateTile();
-        super.onClick();
+    }
+
+    private static void dlog(String msg) {
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, msg);
+        }
     }
 }
@@ -6,58 +6,123 @@
 
 package co.aospa.dtsultra.nubia;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Objects;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
-import android.annotation.SuppressLint;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
-import android.media.AudioAttributes;
-import android.media.AudioDeviceAttributes;
-import android.media.AudioDeviceCallback;
-import android.media.AudioDeviceInfo;
 import android.media.AudioManager;
 import android.media.AudioManager.AudioPlaybackCallback;
 import android.media.AudioPlaybackConfiguration;
+import android.media.audiofx.AudioEffect;
+import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.AtomicFile;
 import android.util.Log;
 import android.widget.Toast;
 
 import androidx.preference.PreferenceManager;
 
-import static android.media.AudioDeviceInfo.TYPE_BLE_HEADSET;
-import static android.media.AudioDeviceInfo.TYPE_BLE_SPEAKER;
-import static android.media.AudioDeviceInfo.TYPE_BLUETOOTH_A2DP;
-import static android.media.AudioDeviceInfo.TYPE_BUILTIN_EARPIECE;
-import static android.media.AudioDeviceInfo.TYPE_BUILTIN_SPEAKER;
-import static android.media.AudioDeviceInfo.TYPE_LINE_ANALOG;
-import static android.media.AudioDeviceInfo.TYPE_LINE_DIGITAL;
-import static android.media.AudioDeviceInfo.TYPE_USB_HEADSET;
-import static android.media.AudioDeviceInfo.TYPE_WIRED_HEADPHONES;
-import static android.media.AudioDeviceInfo.TYPE_WIRED_HEADSET;
-
-import static co.aospa.dtsultra.nubia.DtsConstants.AudioRoute.BLUETOOTH;
-import static co.aospa.dtsultra.nubia.DtsConstants.AudioRoute.INTERNAL_SPEAKERS;
-import static co.aospa.dtsultra.nubia.DtsConstants.AudioRoute.LINE_OUT;
-import static co.aospa.dtsultra.nubia.DtsConstants.AudioRoute.UNKNOWN;
-import static co.aospa.dtsultra.nubia.DtsConstants.AudioRoute.USB;
-
 public final class DtsUtils {
     private static final String TAG = "DtsUtils";
     private static final int EFFECT_PRIORITY = 100;
+    /* Playback events come in bursts on track changes and ducking */
+    private static final long PLAYBACK_EVENT_DEBOUNCE_MS = 100;
+    private static final String DIAGNOSTICS_PREFS = "dtsultra_diagnostics";
+    /* setprop log.tag.DtsTraffic VERBOSE records effect calls from the next start */
+    private static final String TRAFFIC_TAG = "DtsTraffic";
+    private static final String TRAFFIC_FILE = "dtsultra_traffic.bin";
     private static DtsUtils mInstance;
-    private DtsAudio mDtsAudio;
+    /* Created with the instance, all effect I/O runs on it */
+    private static EffectExecutor sExecutor;
+    /* The single writer of the settings file */
+    private static DtsStore sStore;
+    /* Disk writes go here, never on the effect thread */
+    private static Handler sStoreHandler;
+    /* The firmware can't change while we are running */
+    private static volatile DtsDiagnostics sDiagnostics;
+    private final EffectExecutor mExecutor;
     private final Context mContext;
     private final AudioManager mAudioManager;
-    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final SharedPreferences mPrefs;
+    private final DtsStore mStore;
+    private final Handler mStoreHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private volatile DtsSettings mSettings;
+    /* Written on the effect thread only */
+    private volatile DtsState mState;
+    private final String[] mProfileValues;
+    private final String[] mProfileEntries;
+    private final String[] mPresetValues;
+    private final String[] mPresetEntries;
+    /* Only accessed on the effect thread */
+    private final EqStateStore mEqStore;
+    private boolean mSavingEq = false;
+
+    /* Keys for effect writes where only the latest queued one matters */
+    private enum Command {
+        ENABLE,
+        PROFILE,
+        EQ,
+        SNAPSHOT,
+    }
+
+    /* Only accessed on the effect thread */
+    private final EffectLifecycle mEffect;
+    private DtsAudio mDtsAudio;
+    private final AutoProfileController mAutoProfile;
+    private Map<String, Integer> mCompiledAppProfiles;
+    /* Rules from dtsultra_app_profiles, in the saved format */
+    private final String mDefaultAppProfiles;
+    /* Null unless the device opts in to per-session instances */
+    private final SessionEffectManager mSessions;
+    /* Whether the global effect is bypassed for per-session instances */
+    private boolean mGlobalBypassed = false;
     private boolean mCallbacksRegistered = false;
-    private static final AudioAttributes ATTRIBUTES_MEDIA = new AudioAttributes.Builder()
-            .setUsage(AudioAttributes.USAGE_MEDIA)
-            .build();
-    private int mCurrentDeviceType = -1;
+    private final RouteResolver mRoutes;
+    /* Set up with the journal, before the effect is created */
+    private ProfileApplier mApplier;
+    private DtsCapabilities mCapabilities;
+    private final Set<EffectSnapshot.Field> mSnapshotFields;
+    /* Latest readback of the effect, and how it differs from the saved settings */
+    private volatile EffectSnapshot mSnapshot;
+    private volatile String mSnapshotDrift = "";
+    private final Runnable mApplyCurrentProfile = this::setCurrentProfile;
+
+    /* Audio event pipeline statistics, written on the effect thread only */
+    private volatile long mEventsReceived = 0;
+    private volatile long mEventsCollapsed = 0;
+    private volatile long mProfileApplies = 0;
+    private volatile long mReplays = 0;
+
+    /* Boot restore stage timings in ms, -1 until measured */
+    private volatile long mEffectInitMs = -1;
+    private volatile long mBootWaitMs = -1;
+    private volatile long mBootJournalMs = -1;
+    private volatile long mBootRestoreMs = -1;
+
+    /* Swap in a fresh settings snapshot whenever one of ours changes */
+    private final SharedPreferences.OnSharedPreferenceChangeListener mPrefsListener = (prefs, key) -> {
+        if (key == null || key.startsWith("dtsultra_")) {
+            onSettingsChanged();
+        }
+    };
+    private final DtsStore.Listener mStoreListener = store -> onStoreChanged();
 
     /* Restore current profile on every media session */
     private final AudioPlaybackCallback mPlaybackCallback = new AudioPlaybackCallback() {
@@ -66,266 +131,748 @@ public final class DtsUtils {
             boolean isPlaying = configs.stream().anyMatch(c -> c.getPlayerState() == AudioPlaybackConfiguration.PLAYER_STATE_STARTED);
             dlog("onPlaybackConfigChanged isPlaying=" + isPlaying);
             if (mDtsAudio != null && isPlaying) {
-                setCurrentProfile();
+                scheduleCurrentProfile();
+            }
+            if (mSessions != null) {
+                mSessions.onPlaybackConfigChanged(configs);
+            }
+            if (getSettings().isAutoProfile()) {
+                mAutoProfile.onPlaybackConfigChanged(configs);
             }
         }
     };
 
-    /* Restore current profile on audio device change */
-    private final AudioDeviceCallback mAudioDeviceCallback = new AudioDeviceCallback() {
-        public void onAudioDevicesAdded(AudioDeviceInfo[] addedDevices) {
-            dlog("onAudioDevicesAdded");
+    /* Per-session instances follow the user's settings, and replace the global effect */
+    private final SessionEffectManager.Callback mSessionCallback =
+            new SessionEffectManager.Callback() {
+        @Override
+        public int getDefaultProfile() {
+            return effectiveProfile(getSettings());
+        }
+
+        @Override
+        public int getRoute() {
+            return mRoutes.getRoute().ordinal();
+        }
+
+        @Override
+        public int[] getGains(int route, int profile) {
+            final int preset = getSettings().getPreset();
+            return profile == DtsConstants.PROFILE_MUSIC && preset != -1
+                    ? mEqStore.getEagleGains(route, profile, preset) : null;
+        }
+
+        @Override
+        public void onAttachedChanged(boolean attached) {
+            dlog("global effect bypassed: " + attached);
+            mGlobalBypassed = attached;
             if (mDtsAudio != null) {
-                setCurrentProfile();
+                mDtsAudio.setEnabled(!attached);
             }
         }
+    };
 
-        public void onAudioDevicesRemoved(AudioDeviceInfo[] removedDevices) {
-            dlog("onAudioDevicesRemoved");
-            if (mDtsAudio != null) {
-                setCurrentProfile();
+    /* Effect control sessions opened and closed by players */
+    private final BroadcastReceiver mSessionReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int sessionId = intent.getIntExtra(AudioEffect.EXTRA_AUDIO_SESSION, 0);
+            if (AudioEffect.ACTION_OPEN_AUDIO_EFFECT_CONTROL_SESSION.equals(intent.getAction())) {
+                mSessions.onSessionOpened(sessionId, intent.getIntExtra(
+                        AudioEffect.EXTRA_CONTENT_TYPE, AudioEffect.CONTENT_TYPE_MUSIC));
+            } else {
+                mSessions.onSessionClosed(sessionId);
             }
         }
     };
 
-    private DtsUtils(Context context) {
+    private DtsUtils(Context context, EffectExecutor executor, DtsStore store,
+            Handler storeHandler) {
         mContext = context;
-        mDtsAudio = new DtsAudio(EFFECT_PRIORITY, 0);
+        mExecutor = executor;
         mAudioManager = context.getSystemService(AudioManager.class);
-        dlog("initialized");
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        mStore = store;
+        mStoreHandler = storeHandler;
+        mEqStore = new EqStateStore(context.getResources());
+        mDefaultAppProfiles = String.join(";",
+                context.getResources().getStringArray(R.array.dtsultra_app_profiles));
+        if (Log.isLoggable(TRAFFIC_TAG, Log.VERBOSE)) {
+            TrafficRecorder.enable(
+                    context.getResources().getInteger(R.integer.dtsultra_traffic_records));
+        }
+        mEffect = new EffectLifecycle(mExecutor.getHandler(), EFFECT_PRIORITY,
+                new EffectLifecycle.Callback() {
+                    @Override
+                    public void onEffectCreated(DtsAudio audio) {
+                        audio.setCapabilities(mCapabilities);
+                        mDtsAudio = audio;
+                        mApplier.invalidate();
+                        if (mGlobalBypassed) {
+                            audio.setEnabled(false);
+                        }
+                    }
+
+                    @Override
+                    public void onEffectReleased() {
+                        mDtsAudio = null;
+                        mApplier.invalidate();
+                    }
+
+                    @Override
+                    public void onControlRegained(DtsAudio audio) {
+                        replayState();
+                    }
+                });
+        mAutoProfile = new AutoProfileController(mExecutor.getHandler(), profile -> {
+            dlog("auto profile: " + profile);
+            setCurrentProfile();
+        });
+        /* Restore current profile on media output change */
+        mRoutes = new RouteResolver(mAudioManager, mExecutor.getHandler(),
+                RouteResolver.buildTable(context.getResources()), (type, route) -> {
+                    if (mDtsAudio != null) {
+                        setCurrentProfile();
+                    }
+                });
+        mSessions = context.getResources().getBoolean(R.bool.dtsultra_per_session_effects)
+                ? new SessionEffectManager(mExecutor.getHandler(), EFFECT_PRIORITY,
+                        context.getResources().getInteger(R.integer.dtsultra_max_session_effects),
+                        mSessionCallback)
+                : null;
+        mSnapshotFields = EffectSnapshot.parseFields(
+                context.getResources().getStringArray(R.array.dtsultra_snapshot_fields));
+        mProfileValues = context.getResources().getStringArray(R.array.dtsultra_profile_values);
+        mProfileEntries = context.getResources().getStringArray(R.array.dtsultra_profile_entries);
+        mPresetValues = context.getResources().getStringArray(R.array.dtsultra_preset_values);
+        mPresetEntries = context.getResources().getStringArray(R.array.dtsultra_preset_entries);
+        /* The store is still loading, so start from the defaults */
+        mState = buildState(false, Integer.parseInt(DtsSettings.DEFAULT_PROFILE),
+                Integer.parseInt(DtsSettings.DEFAULT_PRESET));
+        mPrefs.registerOnSharedPreferenceChangeListener(mPrefsListener);
+        mStore.addListener(mStoreListener);
+        mExecutor.execute(() -> {
+            /* Until the effect is up, assume it matches what was saved */
+            final DtsSettings settings = getSettings();
+            publishState(settings.isEnabled(false), settings.getProfile(), settings.getPreset());
+            mEqStore.load(settings);
+            updateAutoProfile(settings);
+        });
+        mExecutor.execute(this::initEffect);
+    }
+
+    private DtsSettings getSettings() {
+        DtsSettings settings = mSettings;
+        if (settings == null) {
+            settings = DtsSettings.fromStore(mStore, mPrefs, mDefaultAppProfiles);
+            mSettings = settings;
+        }
+        return settings;
+    }
+
+    private void onStoreChanged() {
+        if (mExecutor.isCurrentThread() && mSavingEq) {
+            /* Our own curve save, already in mEqStore; rebuild the snapshot when needed */
+            mSettings = null;
+        } else {
+            onSettingsChanged();
+        }
+    }
 
-        boolean licensed = mDtsAudio.isLicenseValid();
+    private void onSettingsChanged() {
+        final DtsSettings settings = DtsSettings.fromStore(mStore, mPrefs, mDefaultAppProfiles);
+        mSettings = settings;
+        mExecutor.execute(() -> {
+            mEqStore.load(settings);
+            updateAutoProfile(settings);
+        });
+        dlog("settings: " + settings);
+    }
+
+    /** Backs the settings screen with the binary store. */
+    public DtsPreferenceDataStore getPreferenceDataStore() {
+        return new DtsPreferenceDataStore(mStore, mPrefs);
+    }
+
+    private void initEffect() {
+        final long start = SystemClock.elapsedRealtime();
+        /* Before the effect, so the journal is there even if creating it fails */
+        mApplier = new ProfileApplier(ApplyJournal.load(mContext.getFilesDir(), mStoreHandler));
+        mEffect.start();
+        mEffectInitMs = SystemClock.elapsedRealtime() - start;
+        dlog("initialized in " + mEffectInitMs + "ms");
+
+        /* Queued behind whatever callers posted meanwhile, they come first */
+        mExecutor.execute(() -> loadCapabilities(loadDiagnostics()));
+    }
 
-        Log.i(TAG, "DtsAudio license valid: " + licensed);
-        if (!licensed) {
-            Toast.makeText(mContext, R.string.dtsultra_license_invalid, Toast.LENGTH_LONG).show();
+    /* Probes the firmware's commands once per version, later starts load them from disk */
+    private void loadCapabilities(DtsDiagnostics diagnostics) {
+        final String versions = diagnostics != null ? diagnostics.getVersions() : null;
+        if (mDtsAudio == null || versions == null || versions.isEmpty()) {
+            return;
+        }
+        SharedPreferences prefs = mContext.getSharedPreferences(DIAGNOSTICS_PREFS,
+                Context.MODE_PRIVATE);
+        DtsCapabilities caps = DtsCapabilities.load(prefs, versions);
+        if (caps == null) {
+            final long start = SystemClock.elapsedRealtime();
+            caps = DtsCapabilities.probe(mDtsAudio, prefs, versions);
+            dlog("probed capabilities in " + (SystemClock.elapsedRealtime() - start) + "ms");
+            if (caps == null) {
+                return;
+            }
         }
-        Log.i(TAG, "DtsAudio tokens: " + mDtsAudio.getDSECTokens());
-        Log.i(TAG, "DtsAudio versions: " + mDtsAudio.getVersions());
-        Log.i(TAG, "DtsAudio configs: " + mDtsAudio.getCustomerConfigs());
+        Log.i(TAG, "DtsAudio capabilities: " + caps);
+        mCapabilities = caps;
+        mDtsAudio.setCapabilities(caps);
+    }
+
+    private DtsDiagnostics loadDiagnostics() {
+        DtsDiagnostics diagnostics = sDiagnostics;
+        if (diagnostics != null) {
+            return diagnostics;
+        }
+
+        SharedPreferences prefs = mContext.getSharedPreferences(DIAGNOSTICS_PREFS,
+                Context.MODE_PRIVATE);
+        diagnostics = DtsDiagnostics.load(prefs, Build.FINGERPRINT);
+        if (diagnostics == null) {
+            if (mDtsAudio == null) {
+                /* The effect could not be created */
+                return null;
+            }
+            diagnostics = DtsDiagnostics.fetch(mDtsAudio);
+            diagnostics.save(prefs, Build.FINGERPRINT);
+            dlog("fetched diagnostics");
+        }
+        sDiagnostics = diagnostics;
+
+        Log.i(TAG, "DtsAudio license valid: " + diagnostics.isLicensed());
+        if (!diagnostics.isLicensed()) {
+            mMainHandler.post(() -> Toast.makeText(mContext, R.string.dtsultra_license_invalid,
+                    Toast.LENGTH_LONG).show());
+        }
+        Log.i(TAG, "DtsAudio tokens: " + diagnostics.getTokens());
+        Log.i(TAG, "DtsAudio versions: " + diagnostics.getVersions());
+        Log.i(TAG, "DtsAudio configs: " + diagnostics.getConfigs());
+        return diagnostics;
     }
 
     public static synchronized DtsUtils getInstance(Context context) {
         if (mInstance == null) {
-            mInstance = new DtsUtils(context);
+            if (sExecutor == null) {
+                sExecutor = new EffectExecutor("DtsEffect");
+            }
+            if (sStore == null) {
+                /* Off the effect thread, so disk I/O never holds up effect calls */
+                HandlerThread thread = new HandlerThread("DtsStore",
+                        Process.THREAD_PRIORITY_BACKGROUND);
+                thread.start();
+                sStoreHandler = new Handler(thread.getLooper());
+                sStore = DtsStore.open(context.getFilesDir(), sStoreHandler,
+                        PreferenceManager.getDefaultSharedPreferences(context));
+            }
+            mInstance = new DtsUtils(context, sExecutor, sStore, sStoreHandler);
         }
         return mInstance;
     }
 
-    public static synchronized void reset() {
-        if (mInstance != null) {
-            mInstance.registerCallbacks(false);
-            mInstance.mDtsAudio.release();
-            mInstance.mDtsAudio = null;
-        }
-        mInstance = null;
+    /**
+     * Restores the saved state, completing with whether DTS ended up enabled.
+     */
+    public CompletableFuture<Boolean> onBootCompleted() {
+        final long submitted = SystemClock.elapsedRealtime();
+        return mExecutor.submit(() -> {
+            dlog("onBootCompleted");
+            requireEffect();
+            final long start = SystemClock.elapsedRealtime();
+            mBootWaitMs = start - submitted;
+
+            /*
+             * Get sound going with what was applied last, before querying anything.
+             * The curve is the one for the route in use back then, which the
+             * output may no longer be on.
+             */
+            DtsAudio.Transaction tx = mApplier.replayJournal(mDtsAudio);
+            final long replayed = SystemClock.elapsedRealtime();
+            mBootJournalMs = replayed - start;
+
+            /*
+             * Then the full restore, with the curve for the current output.
+             * Its writes go through the cache, so what the journal wrote is skipped.
+             */
+            applyDtsOn(getSettings().isEnabled(isDtsOn()));
+            mBootRestoreMs = SystemClock.elapsedRealtime() - replayed;
+
+            Log.i(TAG, "Boot restore: " + getBootTimings() + ", journal: " + (tx != null ? tx : "empty"));
+            return isDtsOn();
+        });
     }
 
-    public void onBootCompleted() {
-        dlog("onBootCompleted");
-
-        /* Restore current profile now and on certain audio changes. */
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
-        setDtsOn(prefs.getBoolean(DtsSettingsFragment.PREF_ENABLE, getDtsOn()));
-        setCurrentProfile();
+    /** Returns how long each boot restore stage took. */
+    public String getBootTimings() {
+        return "effect=" + mEffectInitMs + "ms wait=" + mBootWaitMs + "ms journal="
+                + mBootJournalMs + "ms restore=" + mBootRestoreMs + "ms";
     }
 
-    private int[] getEqualizerPresetGains(int preset) {
-        int id = switch (preset) {
-            case DtsConstants.PRESET_ROCK -> R.array.dtsultra_preset_rock;
-            case DtsConstants.PRESET_CLASSICAL -> R.array.dtsultra_preset_classical;
-            case DtsConstants.PRESET_POP -> R.array.dtsultra_preset_pop;
-            case DtsConstants.PRESET_OFF -> R.array.dtsultra_preset_off;
-            default -> -1;
-        };
-        if (id == -1) {
-            return null;
+    /* Writes the last applied state again, after another client had control */
+    private void replayState() {
+        final boolean on = mState.isOn();
+        mReplays++;
+        dlog("replaying state: " + mState);
+        mApplier.invalidate();
+        mDtsAudio.setDtsOn(on);
+        if (mGlobalBypassed) {
+            mDtsAudio.setEnabled(false);
+        }
+        if (on) {
+            setCurrentProfile();
         }
-        return mContext.getResources().getIntArray(id);
     }
 
-    private void checkEffect() {
-        if (!mDtsAudio.hasControl()) {
-            Log.w(TAG, "Lost control, recreating effect");
-            mDtsAudio.release();
-            mDtsAudio = new DtsAudio(EFFECT_PRIORITY, 0);
+    /* Collapses bursts of audio events into a single setCurrentProfile() */
+    private void scheduleCurrentProfile() {
+        final Handler handler = mExecutor.getHandler();
+        mEventsReceived++;
+        if (handler.hasCallbacks(mApplyCurrentProfile)) {
+            mEventsCollapsed++;
+            return;
         }
+        handler.postDelayed(mApplyCurrentProfile, PLAYBACK_EVENT_DEBOUNCE_MS);
     }
 
-    public static String eqToString(int[] eq) {
-        return Arrays.stream(eq).mapToObj(String::valueOf).collect(Collectors.joining(";"));
+    /** Prints effect I/O and event statistics, for dumpsys. Counters may be slightly stale. */
+    public void dump(PrintWriter pw) {
+        pw.println("State: " + mState);
+        pw.println("Boot: " + getBootTimings());
+        pw.println("Events: received=" + mEventsReceived + " collapsed=" + mEventsCollapsed
+                + " applies=" + mProfileApplies + " superseded=" + mExecutor.getSupersededCount());
+        pw.println("Control: lost=" + mEffect.getLossCount() + " recovered="
+                + mEffect.getRecoveryCount() + " retries=" + mEffect.getRetryCount()
+                + " last=" + mEffect.getLastRecoveryMs() + "ms total="
+                + mEffect.getTotalRecoveryMs() + "ms replays=" + mReplays);
+        pw.println("Route: device=" + mRoutes.getDeviceType() + " route=" + mRoutes.getRoute()
+                + " policy=" + mRoutes.getPolicyUpdateCount()
+                + " deltas=" + mRoutes.getDeltaUpdateCount());
+        pw.println("Auto profile: switches=" + mAutoProfile.getSwitchCount()
+                + " suppressed=" + mAutoProfile.getSuppressedCount());
+        if (mSessions != null) {
+            pw.println("Sessions: live=" + mSessions.getLiveCount() + " attached="
+                    + mSessions.getAttachCount() + " released=" + mSessions.getReleaseCount()
+                    + " rejected=" + mSessions.getRejectedCount());
+        }
+        final EffectSnapshot snapshot = mSnapshot;
+        if (snapshot != null) {
+            pw.println("Snapshot: " + snapshot);
+            pw.println("Drift: " + (mSnapshotDrift.isEmpty() ? "none" : mSnapshotDrift));
+        }
+        final DtsDiagnostics diagnostics = sDiagnostics;
+        pw.println("Diagnostics: " + (diagnostics != null ? diagnostics : "not loaded"));
+        pw.println("Capabilities: " + (mCapabilities != null ? mCapabilities : "not probed"));
+        EffectMetrics.INSTANCE.dump(pw);
+        final TrafficRecorder recorder = TrafficRecorder.getInstance();
+        if (recorder != null) {
+            pw.println("Traffic: recorded=" + recorder.getTotalCount());
+        }
     }
 
-    public static int[] eqFromString(String values) {
-        return values.isEmpty() ? null : Arrays.stream(values.split(";")).mapToInt(Integer::parseInt).toArray();
+    /**
+     * Writes the recorded effect calls to a trace file and returns it, or null if
+     * recording is off or the write failed.
+     */
+    public File saveTraffic() {
+        final TrafficRecorder recorder = TrafficRecorder.getInstance();
+        if (recorder == null) {
+            return null;
+        }
+        final AtomicFile file = new AtomicFile(new File(mContext.getFilesDir(), TRAFFIC_FILE));
+        FileOutputStream out = null;
+        try {
+            out = file.startWrite();
+            recorder.writeTo(out);
+            file.finishWrite(out);
+            return file.getBaseFile();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save traffic", e);
+            if (out != null) {
+                file.failWrite(out);
+            }
+            return null;
+        }
     }
 
     private void setCurrentProfile() {
-        @SuppressLint("MissingPermission") final AudioDeviceAttributes device = mAudioManager.getDevicesForAttributes(ATTRIBUTES_MEDIA).getFirst();
-        mCurrentDeviceType = device.getType();
-
-        if (!getDtsOn()) {
+        if (mDtsAudio == null) {
+            dlog("setCurrentProfile: skip, no effect");
+            return;
+        }
+        if (!isDtsOn()) {
             dlog("setCurrentProfile: skip, DTS is off");
             return;
         }
 
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
-
-        int profile = Integer.parseInt(Objects.requireNonNull(prefs.getString(DtsSettingsFragment.PREF_PROFILE, "3" /* music */)));
-        int preset = Integer.parseInt((Objects.requireNonNull(prefs.getString(DtsSettingsFragment.PREF_PRESET, "3" /* off */))));
+        final DtsSettings settings = getSettings();
+        int profile = effectiveProfile(settings);
+        int preset = settings.getPreset();
 
         dlog("setCurrentProfile: " + profile + "," + preset);
 
-        int[] eq = null;
-        if (preset == DtsConstants.PRESET_CUSTOM) {
-            String values = prefs.getString(DtsSettingsFragment.PREF_EQ, "");
-            if (values != null && !values.isEmpty()) {
-                eq = eqFromString(values);
+        int route = mRoutes.getRoute().ordinal();
+        int[] eq = preset == DtsConstants.PRESET_CUSTOM ? mEqStore.getCustomDb(route, profile) : null;
+        if (mApplier.isApplied(mDtsAudio, mRoutes.getDeviceType(), route, profile, preset, eq)) {
+            dlog("setCurrentProfile: skip, already applied");
+            return;
+        }
+
+        applyProfile(profile, preset, null);
+    }
+
+    /* The automatically picked profile if there is one, else the saved one */
+    private int effectiveProfile(DtsSettings settings) {
+        int auto = settings.isAutoProfile() ? mAutoProfile.getProfile() : -1;
+        return auto >= 0 ? auto : settings.getProfile();
+    }
+
+    private void updateAutoProfile(DtsSettings settings) {
+        if (!settings.isAutoProfile()) {
+            if (mAutoProfile.getProfile() >= 0) {
+                mAutoProfile.reset();
+                if (mDtsAudio != null) {
+                    setCurrentProfile();
+                }
             }
+            return;
         }
+        /* Only hit the package manager when the rules themselves changed */
+        if (!settings.getAppProfiles().equals(mCompiledAppProfiles)) {
+            mAutoProfile.setRules(ProfileRules.compile(settings.getAppProfiles(),
+                    mContext.getPackageManager()));
+            mCompiledAppProfiles = settings.getAppProfiles();
+        }
+    }
 
-        setProfile(profile, preset, eq);
+    /** Returns the per-app profile rules, by package name. */
+    public Map<String, Integer> getAppProfiles() {
+        return getSettings().getAppProfiles();
+    }
+
+    /**
+     * Sets the profile to use while the given app is playing, or removes its rule
+     * if profile is -1. Only used while automatic profiles are on. Returns the
+     * rules as saved.
+     */
+    public Map<String, Integer> setAppProfile(String packageName, int profile) {
+        final Map<String, Integer> rules = new LinkedHashMap<>(getSettings().getAppProfiles());
+        if (profile < 0) {
+            rules.remove(packageName);
+        } else {
+            rules.put(packageName, profile);
+        }
+        mPrefs.edit().putString(DtsSettingsFragment.PREF_APP_PROFILES,
+                DtsSettings.appProfilesToString(rules)).apply();
+        return rules;
     }
 
     private void registerCallbacks(boolean register) {
         dlog("registerCallbacks(" + register + ") mCallbacksRegistered=" + mCallbacksRegistered);
         if (register && !mCallbacksRegistered) {
-            mAudioManager.registerAudioPlaybackCallback(mPlaybackCallback, mHandler);
-            mAudioManager.registerAudioDeviceCallback(mAudioDeviceCallback, mHandler);
+            /* Resolves the current output right away, before the profile is restored */
+            mRoutes.start();
+            mAudioManager.registerAudioPlaybackCallback(mPlaybackCallback, mExecutor.getHandler());
+            if (mSessions != null) {
+                IntentFilter filter = new IntentFilter();
+                filter.addAction(AudioEffect.ACTION_OPEN_AUDIO_EFFECT_CONTROL_SESSION);
+                filter.addAction(AudioEffect.ACTION_CLOSE_AUDIO_EFFECT_CONTROL_SESSION);
+                mContext.registerReceiver(mSessionReceiver, filter, null, mExecutor.getHandler(),
+                        Context.RECEIVER_EXPORTED);
+            }
             mCallbacksRegistered = true;
         } else if (!register && mCallbacksRegistered) {
             mAudioManager.unregisterAudioPlaybackCallback(mPlaybackCallback);
-            mAudioManager.unregisterAudioDeviceCallback(mAudioDeviceCallback);
+            mRoutes.stop();
+            if (mSessions != null) {
+                mContext.unregisterReceiver(mSessionReceiver);
+                mSessions.releaseAll();
+            }
             mCallbacksRegistered = false;
         }
     }
 
-    public void setDtsOn(boolean on) {
-        checkEffect();
+    public CompletableFuture<Void> setDtsOn(boolean on) {
+        return mExecutor.submit(Command.ENABLE, () -> applyDtsOn(on));
+    }
+
+    public CompletableFuture<Boolean> getDtsOn() {
+        return mExecutor.submit(this::isDtsOn);
+    }
+
+    public CompletableFuture<Void> setProfile(int index, int preset, int[] eq) {
+        final int[] gains = eq != null ? eq.clone() : null;
+        return mExecutor.submit(Command.PROFILE, () -> applyProfile(index, preset, gains));
+    }
+
+    public CompletableFuture<Integer> getProfile() {
+        return mExecutor.submit(this::currentProfile);
+    }
+
+    public CompletableFuture<String> getProfileName() {
+        return mExecutor.submit(() -> {
+            int profile = requireEffect().getProfile();
+            dlog("getProfileName: profile=" + profile);
+            return entryFor(mProfileValues, mProfileEntries, profile);
+        });
+    }
+
+    /**
+     * Returns the state last applied to the effect. Never blocks, so it is safe to
+     * call from binder threads and the main thread.
+     */
+    public DtsState getState() {
+        return mState;
+    }
+
+    /** Returns the latest readback of the effect, or null if there was none yet. */
+    public EffectSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Reads the configured fields back from the effect in one batch, coalescing
+     * with refreshes still queued. Anything it reports differently from the
+     * published state is published, so every reader of {@link #getState} sees it.
+     */
+    public CompletableFuture<EffectSnapshot> refreshSnapshot() {
+        return mExecutor.submit(Command.SNAPSHOT, this::readSnapshot);
+    }
+
+    private EffectSnapshot readSnapshot() {
+        if (mDtsAudio == null) {
+            return mSnapshot;
+        }
+        final DtsSettings settings = getSettings();
+        final EffectSnapshot snapshot = mDtsAudio.readSnapshot(mSnapshotFields,
+                mRoutes.getRoute().ordinal(), effectiveProfile(settings));
+        mSnapshot = snapshot;
+        dlog("snapshot: " + snapshot);
+
+        boolean on = mState.isOn();
+        int profile = mState.getProfile();
+        if (snapshot.has(EffectSnapshot.Field.ENABLED)) {
+            on = snapshot.get(EffectSnapshot.Field.ENABLED) > 0;
+        }
+        if (snapshot.has(EffectSnapshot.Field.PROFILE)) {
+            profile = snapshot.get(EffectSnapshot.Field.PROFILE);
+        }
+        publishState(on, profile, mState.getPreset());
+
+        final String drift = describeDrift(snapshot, settings);
+        if (!drift.equals(mSnapshotDrift)) {
+            if (!drift.isEmpty()) {
+                Log.w(TAG, "Effect differs from settings: " + drift);
+            }
+            mSnapshotDrift = drift;
+        }
+        return snapshot;
+    }
+
+    /* Lists what the effect reports differently from the saved settings */
+    private String describeDrift(EffectSnapshot snapshot, DtsSettings settings) {
+        final StringBuilder sb = new StringBuilder();
+        final boolean on = settings.isEnabled(false);
+        if (snapshot.has(EffectSnapshot.Field.ENABLED)
+                && (snapshot.get(EffectSnapshot.Field.ENABLED) > 0) != on) {
+            sb.append(" enabled=").append(!on).append(" (saved ").append(on).append(')');
+        }
+        if (!on) {
+            return sb.toString().trim();
+        }
+        final int profile = effectiveProfile(settings);
+        if (snapshot.has(EffectSnapshot.Field.PROFILE)
+                && snapshot.get(EffectSnapshot.Field.PROFILE) != profile) {
+            sb.append(" profile=").append(snapshot.get(EffectSnapshot.Field.PROFILE))
+                    .append(" (saved ").append(profile).append(')');
+        }
+        final int preset = settings.getPreset();
+        if (snapshot.has(EffectSnapshot.Field.GEQ_GAINS) && snapshot.getProfile() == profile
+                && profile == DtsConstants.PROFILE_MUSIC && preset != -1) {
+            int[] expected = mEqStore.getEagleGains(snapshot.getRoute(), profile, preset);
+            if (expected != null && !snapshot.gainsEqual(expected)) {
+                sb.append(" gains=").append(Arrays.toString(snapshot.getGains()))
+                        .append(" (saved ").append(Arrays.toString(expected)).append(')');
+            }
+        }
+        return sb.toString().trim();
+    }
+
+    private void applyDtsOn(boolean on) {
         dlog("setDtsOn: " + on);
-        mDtsAudio.setDtsOn(on);
+        final boolean applied = mApplier.setDtsOn(requireEffect(), on);
         registerCallbacks(on);
+        publishState(applied, mState.getProfile(), mState.getPreset());
+        if (on) {
+            /* Restore in place, the effect handle stays the same */
+            setCurrentProfile();
+        }
     }
 
-    public boolean getDtsOn() {
-        checkEffect();
-        boolean on = mDtsAudio.getDtsOn();
+    private boolean isDtsOn() {
+        boolean on = requireEffect().getDtsOn();
         dlog("getDtsOn: " + on);
+        publishState(on, mState.getProfile(), mState.getPreset());
         return on;
     }
 
-    public void setProfile(int index, int preset, int[] eq) {
-        checkEffect();
-        dlog("setProfile: " + index + ", " + preset);
-        if (getProfile() != index) {
-            mDtsAudio.setProfile(index);
+    private void publishState(boolean on, int profile, int preset) {
+        if (!mState.matches(on, profile, preset)) {
+            mState = buildState(on, profile, preset);
+            dlog("state: " + mState);
         }
+    }
+
+    private DtsState buildState(boolean on, int profile, int preset) {
+        return new DtsState(on, profile, preset, entryFor(mProfileValues, mProfileEntries, profile),
+                profile == DtsConstants.PROFILE_MUSIC
+                        ? entryFor(mPresetValues, mPresetEntries, preset) : null);
+    }
+
+    private static String entryFor(String[] values, String[] entries, int value) {
+        String key = Integer.toString(value);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i].equals(key)) {
+                return entries[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param eq new custom gains for the current route, or null to use the stored ones
+     */
+    private void applyProfile(int index, int preset, int[] eq) {
+        dlog("setProfile: " + index + ", " + preset);
+        mProfileApplies++;
+        dlog("events: received=" + mEventsReceived + " collapsed=" + mEventsCollapsed
+                + " applies=" + mProfileApplies);
+        final DtsAudio audio = requireEffect();
+        int route = mRoutes.getRoute().ordinal();
+        int[] gains = null;
         if (index == DtsConstants.PROFILE_MUSIC && preset != -1) {
-            if (preset != DtsConstants.PRESET_CUSTOM) {
-                eq = getEqualizerPresetGains(preset);
+            if (preset == DtsConstants.PRESET_CUSTOM && eq != null) {
+                mEqStore.setCustom(route, index, eq);
             }
 
-            if (eq == null) {
+            gains = mEqStore.getEagleGains(route, index, preset);
+            if (gains == null) {
                 if (preset == DtsConstants.PRESET_CUSTOM) {
                     Log.e(TAG, "No eq gains are provided for custom preset");
                 } else {
                     Log.e(TAG, "Unknown preset: " + preset);
                 }
+                audio.beginTransaction().setProfile(index).commit();
+                mApplier.invalidate();
                 return;
             }
-
-            //setEqOn(mCurrentDeviceType, false);
-            //setEqOn(mCurrentDeviceType, true);
-            setEq(mCurrentDeviceType, eq);
         }
 
+        final int[] customDb = preset == DtsConstants.PRESET_CUSTOM
+                ? mEqStore.getCustomDb(route, index) : null;
+        DtsAudio.Transaction tx = mApplier.apply(audio, mRoutes.getDeviceType(), route, index,
+                preset, customDb, gains);
+        if (!tx.isSuccessful()) {
+            Log.e(TAG, "Failed to apply profile: " + tx);
+            return;
+        }
+        publishState(mState.isOn(), index, preset);
+        if (mSessions != null) {
+            mSessions.applyAll();
+        }
     }
 
-    public int getProfile() {
-        int profile = mDtsAudio.getProfile();
+    private int currentProfile() {
+        int profile = requireEffect().getProfile();
         dlog("getProfile: " + profile);
         return profile;
     }
 
-    public String getProfileName() {
-        String profile = Integer.toString(mDtsAudio.getProfile());
-        List<String> profiles = Arrays.asList(mContext.getResources().getStringArray(R.array.dtsultra_profile_values));
-        int profileIndex = profiles.indexOf(profile);
-        dlog("getProfileName: profile=" + profile + " index=" + profileIndex);
-        return profileIndex == -1 ? null : mContext.getResources().getStringArray(R.array.dtsultra_profile_entries)[profileIndex];
-    }
-
-    public String getPresetName() {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
-        int preset = Integer.parseInt((Objects.requireNonNull(prefs.getString(DtsSettingsFragment.PREF_PRESET, "3" /* off */))));
-        List<String> presets = Arrays.asList(mContext.getResources().getStringArray(R.array.dtsultra_preset_entries));
-        int presetIndex = presets.indexOf(String.valueOf(preset));
-        dlog("getPresetName: preset=" + preset + " index=" + presetIndex);
-        return presetIndex == -1 ? null : mContext.getResources().getStringArray(R.array.dtsultra_preset_values)[presetIndex];
-    }
-
-    public static int toDb(int gain) {
-        return (int) Math.round(Math.log10(gain / 4096.) * 20.);
-    }
-
-    public static int toEagleGain(int db) {
-        return (int) (Math.pow(10., db / 20.) * 4096.);
+    private void applyEq(int audioRoute, int[] eagleGains) {
+        if (eagleGains == null) {
+            Log.e(TAG, "No eq gains for route " + audioRoute);
+            return;
+        }
+        int ret = mApplier.applyEq(requireEffect(), audioRoute, eagleGains);
+        if (ret < 0) {
+            Log.e(TAG, "Failed to apply eq: " + DtsConstants.effectStatusName(ret));
+        }
     }
 
-    private void setEq(int deviceType, int[] gains) {
-        if (gains.length != 10) {
+    /**
+     * Sets the custom EQ of the current route and profile, without saving it, as
+     * slider drags do many times a second. Call {@link #saveEq} once it is final.
+     */
+    public CompletableFuture<Void> setEq(int[] gains) {
+        if (gains.length != DtsConstants.EQ_BAND_COUNT) {
             throw new IllegalArgumentException("Expected 10 bands");
         }
+        final int[] copy = gains.clone();
+        return mExecutor.submit(Command.EQ, () -> {
+            int profile = currentProfile();
+            if (profile < 0) {
+                Log.e(TAG, "Failed to get profile: " + profile);
+                return;
+            }
+            int route = mRoutes.getRoute().ordinal();
+            mEqStore.setCustom(route, profile, copy);
+            applyEq(route, mEqStore.getEagleGains(route, profile, DtsConstants.PRESET_CUSTOM));
+        });
+    }
 
-        int profile = mDtsAudio.getProfile();
-        if (profile < 0) {
-            Log.e(TAG, "Failed to get profile: " + profile);
-            return;
+    /**
+     * Saves the custom EQ of the current route and profile.
+     */
+    public CompletableFuture<Void> saveEq(int[] gains) {
+        if (gains.length != DtsConstants.EQ_BAND_COUNT) {
+            throw new IllegalArgumentException("Expected 10 bands");
         }
-
-        int audioRoute = getRouteFromDeviceType(deviceType).ordinal();
-        int[] eagleGains = Arrays.stream(gains).map(DtsUtils::toEagleGain).toArray();
-        mDtsAudio.setAllEqGainsV3(audioRoute, profile, eagleGains);
+        final int[] copy = gains.clone();
+        return mExecutor.submit(() -> {
+            /* Without an effect, save it for the profile it would be in */
+            int profile = mDtsAudio != null ? currentProfile() : effectiveProfile(getSettings());
+            if (profile < 0) {
+                Log.e(TAG, "Failed to get profile: " + profile);
+                return;
+            }
+            saveCustomEq(mRoutes.getRoute(), profile, copy);
+        });
     }
 
-    public void setEq(int[] gains) {
-        checkEffect();
-        setEq(mCurrentDeviceType, gains);
+    /**
+     * Returns the custom EQ of the current route and profile, or null if there is none.
+     */
+    public CompletableFuture<int[]> getCustomEq() {
+        return mExecutor.submit(() -> {
+            int route = mRoutes.getRoute().ordinal();
+            int[] gains = mEqStore.getCustomDb(route, currentProfile());
+            return gains != null ? gains.clone() : null;
+        });
     }
 
-    private void setEqOn(int deviceType, boolean enabled) {
-        checkEffect();
-        int profile = getProfile();
-        if (profile < 0) {
-            Log.e(TAG, "Failed to get profile: " + profile);
-            return;
+    private void saveCustomEq(DtsConstants.AudioRoute route, int profile, int[] gains) {
+        mEqStore.setCustom(route.ordinal(), profile, gains);
+        mSavingEq = true;
+        try {
+            mStore.setGains(route, profile, gains);
+        } finally {
+            mSavingEq = false;
         }
-
-        int audioRoute = getRouteFromDeviceType(deviceType).ordinal();
-        mDtsAudio.setEqOnV3(audioRoute, profile, enabled);
     }
 
-    public void setEqBand(int band, int gain) {
-        checkEffect();
-        int profile = mDtsAudio.getProfile();
-        if (profile < 0) {
-            Log.e(TAG, "Failed to get profile: " + profile);
-            return;
+    /* Fails the entry point's future when there is no effect to talk to */
+    private DtsAudio requireEffect() {
+        if (mDtsAudio == null) {
+            throw new IllegalStateException("DTS effect is not available");
         }
-
-        int audioRoute = getRouteFromDeviceType(mCurrentDeviceType).ordinal();
-        int eagleGain = toEagleGain(gain);
-        mDtsAudio.setEqGainV3(audioRoute, profile, band, eagleGain);
-    }
-
-    private static DtsConstants.AudioRoute getRouteFromDeviceType(int type) {
-        return switch(type) {
-            case TYPE_BUILTIN_EARPIECE, TYPE_BUILTIN_SPEAKER -> INTERNAL_SPEAKERS;
-            case TYPE_WIRED_HEADSET, TYPE_WIRED_HEADPHONES, TYPE_LINE_ANALOG, TYPE_LINE_DIGITAL -> LINE_OUT;
-            case TYPE_BLUETOOTH_A2DP, TYPE_BLE_HEADSET, TYPE_BLE_SPEAKER -> BLUETOOTH;
-            case TYPE_USB_HEADSET -> USB;
-            default -> UNKNOWN;
-        };
+        return mDtsAudio;
     }
 
     private static void dlog(String msg) {
@@ -0,0 +1,19 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+/**
+ * Raw parameter interface of an audio effect, as implemented by
+ * {@link android.media.audiofx.AudioEffect}.
+ */
+interface EffectBackend {
+    /** Returns a status code, negative on error. */
+    int setParameter(byte[] param, byte[] value);
+
+    /** Returns the size of the reply written to value, negative on error. */
+    int getParameter(byte[] param, byte[] value);
+}
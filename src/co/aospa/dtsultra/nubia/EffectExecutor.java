@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Single-threaded, ordered executor for all effect I/O, so binder calls into
+ * audioserver never run on the main thread.
+ *
+ * Keyed commands coalesce: while a command for a key is still queued, submitting
+ * another one for the same key drops it and queues the new one at the end, so
+ * only the latest write for that key reaches the effect, after everything that
+ * was submitted before it. Both callers get the result of the one that runs.
+ *
+ * What AudioEffect throws when the effect is gone is logged and fails the
+ * caller's future. Any other runtime exception is a bug and is rethrown, after
+ * failing the future, so it crashes rather than disappearing into the log.
+ */
+final class EffectExecutor {
+    private static final String TAG = "EffectExecutor";
+
+    private final class KeyedCommand<T> implements Runnable {
+        final Object key;
+        final Callable<T> command;
+        final CompletableFuture<T> future;
+
+        KeyedCommand(Object key, Callable<T> command, CompletableFuture<T> future) {
+            this.key = key;
+            this.command = command;
+            this.future = future;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                /* Superseded after the handler already picked it up */
+                if (mPending.get(key) != this) {
+                    return;
+                }
+                mPending.remove(key);
+            }
+            complete(future, command);
+        }
+    }
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Object mLock = new Object();
+    private final Map<Object, KeyedCommand<?>> mPending = new HashMap<>();
+    private long mSuperseded = 0;
+
+    EffectExecutor(String name) {
+        mThread = new HandlerThread(name);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    public Handler getHandler() {
+        return mHandler;
+    }
+
+    public boolean isCurrentThread() {
+        return Looper.myLooper() == mThread.getLooper();
+    }
+
+    public void execute(Runnable command) {
+        mHandler.post(() -> {
+            try {
+                command.run();
+            } catch (IllegalStateException | UnsupportedOperationException e) {
+                Log.e(TAG, "Effect command failed", e);
+            }
+        });
+    }
+
+    public <T> CompletableFuture<T> submit(Callable<T> command) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        mHandler.post(() -> complete(future, command));
+        return future;
+    }
+
+    public CompletableFuture<Void> submit(Runnable command) {
+        return submit(() -> {
+            command.run();
+            return null;
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> submit(Object key, Callable<T> command) {
+        final KeyedCommand<T> pending;
+        synchronized (mLock) {
+            KeyedCommand<T> queued = (KeyedCommand<T>) mPending.get(key);
+            if (queued != null) {
+                mHandler.removeCallbacks(queued);
+                mSuperseded++;
+                dlog("superseded " + key + " (" + mSuperseded + " total)");
+            }
+            pending = new KeyedCommand<>(key, command,
+                    queued != null ? queued.future : new CompletableFuture<>());
+            mPending.put(key, pending);
+        }
+        mHandler.post(pending);
+        return pending.future;
+    }
+
+    public CompletableFuture<Void> submit(Object key, Runnable command) {
+        return submit(key, () -> {
+            command.run();
+            return null;
+        });
+    }
+
+    public long getSupersededCount() {
+        synchronized (mLock) {
+            return mSuperseded;
+        }
+    }
+
+    private static <T> void complete(CompletableFuture<T> future, Callable<T> command) {
+        try {
+            future.complete(command.call());
+        } catch (IllegalStateException | UnsupportedOperationException e) {
+            Log.e(TAG, "Effect command failed", e);
+            future.completeExceptionally(e);
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } catch (Exception e) {
+            Log.e(TAG, "Effect command failed", e);
+            future.completeExceptionally(e);
+        }
+    }
+
+    private static void dlog(String msg) {
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, msg);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+import android.media.audiofx.AudioEffect;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Keeps a single DTS effect handle alive and recreates it only when audioserver
+ * reports that control over it was lost, instead of checking before every call.
+ *
+ * While another client holds control, or the effect cannot be created, a new
+ * handle is tried with exponential backoff, starting one backoff period after
+ * the loss so the other client is not fought right away, and given up on after
+ * {@link #MAX_ATTEMPTS}. Once control is back, the owner is told to replay its
+ * state.
+ *
+ * Must be created and used on the effect thread, the status listeners are
+ * delivered on the looper the effect was created on.
+ */
+final class EffectLifecycle {
+    private static final String TAG = "EffectLifecycle";
+
+    private static final long RETRY_BASE_MS = 100;
+    private static final long RETRY_MAX_MS = 10_000;
+    /* About two minutes of backoff */
+    static final int MAX_ATTEMPTS = 20;
+
+    interface Callback {
+        /** A new effect handle is in use, the previous one must not be touched. */
+        void onEffectCreated(DtsAudio audio);
+
+        /** The effect handle was released, there is none until the next one is created. */
+        void onEffectReleased();
+
+        /** Control is back after having been lost, state has to be written again. */
+        void onControlRegained(DtsAudio audio);
+    }
+
+    private final Handler mHandler;
+    private final int mPriority;
+    private final Callback mCallback;
+    private final Runnable mRetry = this::retry;
+    private DtsAudio mAudio;
+    private long mLostAt = -1;
+    private long mRetryDelayMs = RETRY_BASE_MS;
+    /* Retries since control was lost */
+    private int mAttempts = 0;
+
+    /* Recovery statistics, written on the effect thread only */
+    private volatile long mLosses = 0;
+    private volatile long mRecoveries = 0;
+    private volatile long mRetries = 0;
+    private volatile long mLastRecoveryMs = 0;
+    private volatile long mTotalRecoveryMs = 0;
+
+    private final AudioEffect.OnControlStatusChangeListener mControlListener = (effect, granted) -> {
+        if (effect != mAudio) {
+            return;
+        }
+        dlog("onControlStatusChange: " + granted);
+        /* Whoever had control meanwhile may have reconfigured the effect */
+        mAudio.invalidateCache();
+        if (granted) {
+            onRegained();
+        } else {
+            onLost();
+        }
+    };
+
+    private final AudioEffect.OnEnableStatusChangeListener mEnableListener = (effect, enabled) -> {
+        if (effect != mAudio) {
+            return;
+        }
+        dlog("onEnableStatusChange: " + enabled);
+        mAudio.invalidateCache();
+    };
+
+    EffectLifecycle(Handler handler, int priority, Callback callback) {
+        mHandler = handler;
+        mPriority = priority;
+        mCallback = callback;
+    }
+
+    /**
+     * Creates the effect unless it already exists, and returns it. Returns null if
+     * it could not be created, it is then retried in the background.
+     */
+    public DtsAudio start() {
+        if (mAudio == null) {
+            mHandler.removeCallbacks(mRetry);
+            mAttempts = 0;
+            if (!create() || !mAudio.hasControl()) {
+                markLost();
+                scheduleRetry();
+            }
+        }
+        return mAudio;
+    }
+
+    /** Returns the current effect, or null if not started or it could not be created. */
+    public DtsAudio get() {
+        return mAudio;
+    }
+
+    public void release() {
+        mHandler.removeCallbacks(mRetry);
+        if (mAudio != null) {
+            mAudio.setControlStatusListener(null);
+            mAudio.setEnableStatusListener(null);
+            mAudio.release();
+            mAudio = null;
+            mCallback.onEffectReleased();
+        }
+    }
+
+    public long getLossCount() {
+        return mLosses;
+    }
+
+    public long getRecoveryCount() {
+        return mRecoveries;
+    }
+
+    public long getRetryCount() {
+        return mRetries;
+    }
+
+    public long getLastRecoveryMs() {
+        return mLastRecoveryMs;
+    }
+
+    public long getTotalRecoveryMs() {
+        return mTotalRecoveryMs;
+    }
+
+    private void onLost() {
+        Log.w(TAG, "Lost control, recreating effect in " + mRetryDelayMs + "ms");
+        markLost();
+        scheduleRetry();
+    }
+
+    private void markLost() {
+        if (mLostAt < 0) {
+            mLostAt = SystemClock.elapsedRealtime();
+            mLosses++;
+            mAttempts = 0;
+        }
+    }
+
+    private void retry() {
+        if (mLostAt < 0) {
+            return;
+        }
+        mRetries++;
+        dlog("retry " + mRetries + " after " + mRetryDelayMs + "ms");
+        recreate();
+    }
+
+    private void recreate() {
+        mHandler.removeCallbacks(mRetry);
+        if (mAudio != null) {
+            mAudio.setControlStatusListener(null);
+            mAudio.setEnableStatusListener(null);
+            mAudio.release();
+            mAudio = null;
+            mCallback.onEffectReleased();
+        }
+        if (create() && mAudio.hasControl()) {
+            onRegained();
+        } else {
+            scheduleRetry();
+        }
+    }
+
+    private void scheduleRetry() {
+        mHandler.removeCallbacks(mRetry);
+        if (mAttempts >= MAX_ATTEMPTS) {
+            Log.e(TAG, "Giving up on the effect after " + mAttempts + " attempts");
+            return;
+        }
+        mAttempts++;
+        mHandler.postDelayed(mRetry, mRetryDelayMs);
+        mRetryDelayMs = Math.min(mRetryDelayMs * 2, RETRY_MAX_MS);
+    }
+
+    private void onRegained() {
+        if (mLostAt < 0) {
+            return;
+        }
+        mHandler.removeCallbacks(mRetry);
+        long took = SystemClock.elapsedRealtime() - mLostAt;
+        mLostAt = -1;
+        mRetryDelayMs = RETRY_BASE_MS;
+        mAttempts = 0;
+        mRecoveries++;
+        mLastRecoveryMs = took;
+        mTotalRecoveryMs += took;
+        Log.i(TAG, "Regained control after " + took + "ms");
+        mCallback.onControlRegained(mAudio);
+    }
+
+    /* Returns whether the effect could be created */
+    private boolean create() {
+        final DtsAudio audio;
+        try {
+            audio = new DtsAudio(mPriority, 0);
+        } catch (RuntimeException e) {
+            /* AudioEffect reports a missing or failing engine by throwing */
+            Log.e(TAG, "Failed to create effect", e);
+            return false;
+        }
+        mAudio = audio;
+        mAudio.setControlStatusListener(mControlListener);
+        mAudio.setEnableStatusListener(mEnableListener);
+        dlog("created, hasControl=" + mAudio.hasControl());
+        mCallback.onEffectCreated(mAudio);
+        return true;
+    }
+
+    private static void dlog(String msg) {
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, msg);
+        }
+    }
+}
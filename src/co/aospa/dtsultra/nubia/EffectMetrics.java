@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import android.media.audiofx.AudioEffect;
+
+import co.aospa.dtsultra.nubia.DtsConstants.DtsSystemComm;
+
+/**
+ * Latency and error statistics of every effect parameter call, by command.
+ * Recording is a couple of uncontended atomic increments, next to a binder
+ * round trip; histograms are only created for commands that are actually used.
+ */
+final class EffectMetrics {
+    private static final DtsSystemComm[] COMMANDS = DtsSystemComm.values();
+    /* Calls return AudioEffect statuses, not the firmware's service codes */
+    private static final int[] ERROR_CODES = {
+        AudioEffect.ERROR,
+        AudioEffect.ALREADY_EXISTS,
+        AudioEffect.ERROR_NO_INIT,
+        AudioEffect.ERROR_BAD_VALUE,
+        AudioEffect.ERROR_INVALID_OPERATION,
+        AudioEffect.ERROR_NO_MEMORY,
+        AudioEffect.ERROR_DEAD_OBJECT,
+    };
+    /* Last slot counts codes not in the list above */
+    private static final int OTHER_ERROR = ERROR_CODES.length;
+
+    /* Shared by all effect instances, so the numbers survive recreation */
+    static final EffectMetrics INSTANCE = new EffectMetrics();
+
+    private final AtomicReferenceArray<LatencyHistogram> mLatency =
+            new AtomicReferenceArray<>(COMMANDS.length);
+    private final AtomicLongArray mErrorsByCommand = new AtomicLongArray(COMMANDS.length);
+    private final AtomicLongArray mErrorsByCode = new AtomicLongArray(ERROR_CODES.length + 1);
+
+    /** Records a call that took ns and returned ret. */
+    public void record(DtsSystemComm param, long ns, int ret) {
+        int i = param.ordinal();
+        LatencyHistogram latency = mLatency.get(i);
+        if (latency == null) {
+            mLatency.compareAndSet(i, null, new LatencyHistogram(param.name()));
+            latency = mLatency.get(i);
+        }
+        latency.record(ns);
+        if (ret < 0) {
+            mErrorsByCommand.incrementAndGet(i);
+            mErrorsByCode.incrementAndGet(errorSlot(ret));
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("Effect commands:");
+        for (DtsSystemComm param : COMMANDS) {
+            LatencyHistogram latency = mLatency.get(param.ordinal());
+            if (latency != null) {
+                pw.println("  " + latency + " errors=" + mErrorsByCommand.get(param.ordinal()));
+            }
+        }
+        pw.println("Effect errors:");
+        for (int i = 0; i <= ERROR_CODES.length; i++) {
+            long count = mErrorsByCode.get(i);
+            if (count > 0) {
+                pw.println("  " + (i == OTHER_ERROR ? "OTHER"
+                        : DtsConstants.effectStatusName(ERROR_CODES[i])) + ": " + count);
+            }
+        }
+    }
+
+    private static int errorSlot(int code) {
+        for (int i = 0; i < ERROR_CODES.length; i++) {
+            if (ERROR_CODES[i] == code) {
+                return i;
+            }
+        }
+        return OTHER_ERROR;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+
+import android.util.Log;
+
+import co.aospa.dtsultra.nubia.DtsConstants.DtsSystemComm;
+
+/**
+ * Immutable readback of the effect's parameters, all read in one effect thread
+ * slot, for the current route and profile. Unlike {@link DtsState} this is what
+ * the effect reports, not what we last wrote to it.
+ */
+final class EffectSnapshot {
+    private static final String TAG = "EffectSnapshot";
+
+    /** Marks fields that were not read, or that the effect failed to report. */
+    public static final int UNKNOWN = Integer.MIN_VALUE;
+
+    enum Field {
+        ENABLED(DtsSystemComm.GET_ENABLED, false),
+        PROFILE(DtsSystemComm.GET_CONTENT_MODE_V2, false),
+        GEQ_ENABLED(DtsSystemComm.GET_GEQ_ENABLED_V3, true),
+        GEQ_GAINS(DtsSystemComm.GET_GEQ_GAIN_ALL_V3, true),
+        STEREO_MODE(DtsSystemComm.GET_STEREO_MODE_V2, false),
+        BASSBOOST_ENABLED(DtsSystemComm.GET_BASSBOOST_ENABLE_V2, false),
+        BASSBOOST_LEVEL(DtsSystemComm.GET_BASSBOOST_LEVEL_V2, false),
+        TREBLEBOOST_ENABLED(DtsSystemComm.GET_TREBLEBOOST_ENABLE_V2, false),
+        TREBLEBOOST_LEVEL(DtsSystemComm.GET_TREBLEBOOST_LEVEL_V2, false),
+        DIALOGBOOST_ENABLED(DtsSystemComm.GET_DIALOGBOOST_ENABLE_V2, false),
+        DIALOGBOOST_LEVEL(DtsSystemComm.GET_DIALOGBOOST_LEVEL_V2, false),
+        LOUDNESS_ENABLED(DtsSystemComm.GET_LOUDNESS_CONTROL_ENABLED_V2, false);
+
+        final DtsSystemComm command;
+        /* Takes the route and profile as arguments */
+        final boolean perCurve;
+
+        Field(DtsSystemComm command, boolean perCurve) {
+            this.command = command;
+            this.perCurve = perCurve;
+        }
+    }
+
+    /** Fields read unless a device overlay configures others. */
+    static final Set<Field> DEFAULT_FIELDS = EnumSet.of(Field.ENABLED, Field.PROFILE,
+            Field.GEQ_ENABLED, Field.GEQ_GAINS);
+
+    private final int mRoute;
+    private final int mProfile;
+    private final int[] mValues;
+    private final int[] mGains;
+    private final int mReads;
+    private final long mElapsedNs;
+
+    EffectSnapshot(int route, int profile, int[] values, int[] gains, int reads, long elapsedNs) {
+        mRoute = route;
+        mProfile = profile;
+        mValues = values;
+        mGains = gains;
+        mReads = reads;
+        mElapsedNs = elapsedNs;
+    }
+
+    /** Parses field names, as in dtsultra_snapshot_fields, skipping unknown ones. */
+    static Set<Field> parseFields(String[] names) {
+        if (names == null || names.length == 0) {
+            return DEFAULT_FIELDS;
+        }
+        Set<Field> fields = EnumSet.noneOf(Field.class);
+        for (String name : names) {
+            try {
+                fields.add(Field.valueOf(name.trim()));
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Ignoring unknown snapshot field " + name);
+            }
+        }
+        return fields;
+    }
+
+    /** The route the curve fields were read for. */
+    public int getRoute() {
+        return mRoute;
+    }
+
+    /** The profile the curve fields were read for. */
+    public int getProfile() {
+        return mProfile;
+    }
+
+    /** Returns the reported value of a field, or {@link #UNKNOWN}. */
+    public int get(Field field) {
+        return mValues[field.ordinal()];
+    }
+
+    public boolean has(Field field) {
+        return field == Field.GEQ_GAINS ? mGains != null : get(field) != UNKNOWN;
+    }
+
+    /** Returns the Eagle gains of the current curve, or null if they were not read. */
+    public int[] getGains() {
+        return mGains != null ? mGains.clone() : null;
+    }
+
+    boolean gainsEqual(int[] gains) {
+        return Arrays.equals(mGains, gains);
+    }
+
+    /** Number of parameter calls the snapshot took. */
+    public int getReadCount() {
+        return mReads;
+    }
+
+    public long getElapsedNs() {
+        return mElapsedNs;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("route=").append(mRoute)
+                .append(" profile=").append(mProfile);
+        for (Field field : Field.values()) {
+            if (field != Field.GEQ_GAINS && has(field)) {
+                sb.append(' ').append(field.name().toLowerCase(Locale.ROOT))
+                        .append('=').append(get(field));
+            }
+        }
+        if (mGains != null) {
+            sb.append(" gains=").append(Arrays.toString(mGains));
+        }
+        return sb.append(" (").append(mReads).append(" reads in ")
+                .append(mElapsedNs / 1000).append("us)").toString();
+    }
+}
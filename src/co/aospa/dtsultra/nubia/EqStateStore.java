@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+import android.content.res.Resources;
+
+import co.aospa.dtsultra.nubia.DtsConstants.AudioRoute;
+
+/**
+ * In-memory EQ curves for every (audio route, profile) pair, kept both in dB and
+ * already converted to Eagle gains, so switching outputs is a single write from
+ * memory.
+ *
+ * Only used from the effect thread.
+ */
+final class EqStateStore {
+    static final AudioRoute[] ROUTES = AudioRoute.values();
+    private static final int[] PROFILES = DtsConstants.PROFILES;
+    private static final int[] PRESETS = {
+        DtsConstants.PRESET_ROCK,
+        DtsConstants.PRESET_CLASSICAL,
+        DtsConstants.PRESET_POP,
+        DtsConstants.PRESET_OFF,
+    };
+
+    /* Custom curves, [route][profile index][band] */
+    private final int[][][] mCustomDb =
+            new int[ROUTES.length][PROFILES.length][DtsConstants.EQ_BAND_COUNT];
+    private final int[][][] mCustomEagle =
+            new int[ROUTES.length][PROFILES.length][DtsConstants.EQ_BAND_COUNT];
+    private final boolean[][] mHasCustom = new boolean[ROUTES.length][PROFILES.length];
+
+    /* Fixed preset curves, [preset][band] */
+    private final int[][] mPresetEagle = new int[PRESETS.length][];
+    private final GainTable mGainTable;
+
+    EqStateStore(Resources res) {
+        mGainTable = new GainTable((int) res.getFloat(R.dimen.dtsultra_eq_slider_min),
+                (int) res.getFloat(R.dimen.dtsultra_eq_slider_max));
+        for (int preset : PRESETS) {
+            int id = switch (preset) {
+                case DtsConstants.PRESET_ROCK -> R.array.dtsultra_preset_rock;
+                case DtsConstants.PRESET_CLASSICAL -> R.array.dtsultra_preset_classical;
+                case DtsConstants.PRESET_POP -> R.array.dtsultra_preset_pop;
+                default -> R.array.dtsultra_preset_off;
+            };
+            int[] db = res.getIntArray(id);
+            int[] eagle = new int[db.length];
+            mGainTable.toEagleGains(db, eagle);
+            mPresetEagle[preset] = eagle;
+        }
+    }
+
+    /** Preloads the custom curves of all routes and profiles from the saved settings. */
+    public void load(DtsSettings settings) {
+        for (int route = 0; route < ROUTES.length; route++) {
+            for (int i = 0; i < PROFILES.length; i++) {
+                int[] gains = settings.getGains(ROUTES[route], PROFILES[i]);
+                mHasCustom[route][i] = gains != null;
+                if (gains != null) {
+                    System.arraycopy(gains, 0, mCustomDb[route][i], 0, gains.length);
+                    mGainTable.toEagleGains(gains, mCustomEagle[route][i]);
+                }
+            }
+        }
+    }
+
+    public void setCustom(int route, int profile, int[] db) {
+        int i = DtsConstants.profileIndex(profile);
+        if (i < 0 || db.length != DtsConstants.EQ_BAND_COUNT) {
+            return;
+        }
+        System.arraycopy(db, 0, mCustomDb[route][i], 0, db.length);
+        mGainTable.toEagleGains(db, mCustomEagle[route][i]);
+        mHasCustom[route][i] = true;
+    }
+
+    /**
+     * Returns the custom curve in dB for the given route and profile, or null if
+     * there is none. The array is owned by the store and must not be modified.
+     */
+    public int[] getCustomDb(int route, int profile) {
+        int i = DtsConstants.profileIndex(profile);
+        return i >= 0 && mHasCustom[route][i] ? mCustomDb[route][i] : null;
+    }
+
+    /**
+     * Returns the Eagle gains to write for the given route, profile and preset, or
+     * null if there are none. The array is owned by the store and must not be
+     * modified.
+     */
+    public int[] getEagleGains(int route, int profile, int preset) {
+        if (preset == DtsConstants.PRESET_CUSTOM) {
+            int i = DtsConstants.profileIndex(profile);
+            return i >= 0 && mHasCustom[route][i] ? mCustomEagle[route][i] : null;
+        }
+        return preset >= 0 && preset < mPresetEagle.length ? mPresetEagle[preset] : null;
+    }
+}
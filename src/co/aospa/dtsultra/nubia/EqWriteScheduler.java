@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Coalesces per-band EQ changes coming from slider drags into a single
+ * all-bands write per frame window.
+ */
+final class EqWriteScheduler {
+    private static final String TAG = "EqWriteScheduler";
+
+    /* One frame at 60Hz */
+    private static final long WINDOW_MS = 16;
+
+    public interface Sink {
+        void onEqFlush(int[] gains);
+    }
+
+    private final Handler mHandler;
+    private final Sink mSink;
+    private final int[] mGains = new int[DtsConstants.EQ_BAND_COUNT];
+    private final Runnable mFlushRunnable = this::flush;
+    private boolean mPending = false;
+
+    private long mBandChanges = 0;
+    private long mWrites = 0;
+
+    EqWriteScheduler(Handler handler, Sink sink) {
+        mHandler = handler;
+        mSink = sink;
+    }
+
+    /** Replaces the gains the next flush starts from, dropping any pending write. */
+    public void setGains(int[] gains) {
+        if (gains.length != mGains.length) {
+            throw new IllegalArgumentException("Expected " + mGains.length + " bands");
+        }
+        cancel();
+        System.arraycopy(gains, 0, mGains, 0, mGains.length);
+    }
+
+    public void onBandChange(int band, int gain) {
+        mGains[band] = gain;
+        mBandChanges++;
+        if (!mPending) {
+            mPending = true;
+            mHandler.postDelayed(mFlushRunnable, WINDOW_MS);
+        }
+    }
+
+    /** Writes out any pending band changes right away. */
+    public void flush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        if (!mPending) {
+            return;
+        }
+        mPending = false;
+        mWrites++;
+        mSink.onEqFlush(mGains);
+        dlog("flush: changes=" + mBandChanges + " writes=" + mWrites + " coalesced=" + getCoalescedCount());
+    }
+
+    public void cancel() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mPending = false;
+    }
+
+    public long getBandChangeCount() {
+        return mBandChanges;
+    }
+
+    public long getCoalescedCount() {
+        return mBandChanges - mWrites;
+    }
+
+    private static void dlog(String msg) {
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, msg);
+        }
+    }
+}
@@ -23,10 +23,12 @@ import androidx.preference.PreferenceViewHolder;
 import com.google.android.material.card.MaterialCardView;
 import com.google.android.material.slider.Slider;
 
-public class EqualizerPreference extends Preference implements Slider.OnChangeListener {
+public class EqualizerPreference extends Preference implements Slider.OnChangeListener,
+        Slider.OnSliderTouchListener {
 
     public interface OnEqBandChangeListener {
         void onEqBandChange(int band, int gain);
+        void onEqBandChangeFinished(int[] gains);
         void onEqChange(int[] gains);
     }
 
@@ -34,6 +36,7 @@ public class EqualizerPreference extends Preference implements Slider.OnChangeLi
     private Slider[] mSliders;
     private int[] mSliderValues;
     private final int mDefaultValue;
+    private boolean mTrackingTouch = false;
 
     private OnEqBandChangeListener mListener;
 
@@ -53,17 +56,19 @@ public class EqualizerPreference extends Preference implements Slider.OnChangeLi
     public void onBindViewHolder(@NonNull PreferenceViewHolder holder) {
         super.onBindViewHolder(holder);
         mSliders = new Slider[mSliderIds.size()];
-        mSliderValues = new int[mSliderIds.size()];
-        Arrays.fill(mSliderValues, mDefaultValue);
+        /* Keep values set through setEq() before we were bound */
+        final boolean hasValues = mSliderValues != null;
+        if (!hasValues) {
+            mSliderValues = new int[mSliderIds.size()];
+            Arrays.fill(mSliderValues, mDefaultValue);
+        }
 
         MaterialCardView cardView = (MaterialCardView) Objects.requireNonNull(holder.findViewById(0));
         cardView.setOnLongClickListener(view -> {
             Arrays.fill(mSliderValues, mDefaultValue);
-            if (persistString(DtsUtils.eqToString(mSliderValues))) {
-                updateSliderValues();
-                if (mListener != null) {
-                    mListener.onEqChange(mSliderValues);
-                }
+            updateSliderValues();
+            if (mListener != null) {
+                mListener.onEqChange(mSliderValues);
             }
             return true;
         });
@@ -72,9 +77,10 @@ public class EqualizerPreference extends Preference implements Slider.OnChangeLi
             int i = entry.getValue();
             mSliders[i] = (Slider) holder.findViewById(entry.getKey());
             mSliders[i].addOnChangeListener(this);
+            mSliders[i].addOnSliderTouchListener(this);
         }
 
-        int[] eq = DtsUtils.eqFromString(getPersistedString(""));
+        int[] eq = hasValues ? mSliderValues : DtsGain.eqFromString(getPersistedString(""));
 
         if (eq != null) {
             if (eq.length != mSliders.length) {
@@ -97,14 +103,16 @@ public class EqualizerPreference extends Preference implements Slider.OnChangeLi
 
     public int[] getEq() {
         if (mSliderValues == null) {
-            return DtsUtils.eqFromString(getPersistedString(""));
+            return DtsGain.eqFromString(getPersistedString(""));
         }
         return mSliderValues;
     }
 
     public void setEq(int[] eq) {
-        mSliderValues = eq;
-        updateSliderValues();
+        mSliderValues = eq.clone();
+        if (mSliders != null) {
+            updateSliderValues();
+        }
     }
 
     @Override
@@ -120,6 +128,27 @@ public class EqualizerPreference extends Preference implements Slider.OnChangeLi
         }
 
         mSliderValues[band] = gain;
-        persistString(DtsUtils.eqToString(mSliderValues));
+        if (!mTrackingTouch) {
+            /* Not a drag (e.g. keyboard), nothing else to wait for */
+            onBandChangeFinished();
+        }
+    }
+
+    @Override
+    public void onStartTrackingTouch(@NonNull Slider slider) {
+        mTrackingTouch = true;
+    }
+
+    @Override
+    public void onStopTrackingTouch(@NonNull Slider slider) {
+        mTrackingTouch = false;
+        onBandChangeFinished();
+    }
+
+    /* Saving is up to the listener, which knows which route the curve is for */
+    private void onBandChangeFinished() {
+        if (mListener != null) {
+            mListener.onEqBandChangeFinished(mSliderValues);
+        }
     }
 }
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+import java.util.Arrays;
+
+/**
+ * Precomputed dB to Eagle gain conversions for the range the equalizer sliders
+ * can produce. Values are computed with {@link DtsGain}, so lookups are exact,
+ * and anything outside the range falls back to it.
+ */
+final class GainTable {
+    private final int mMinDb;
+    private final int[] mEagle;
+
+    GainTable(int minDb, int maxDb) {
+        if (maxDb < minDb) {
+            throw new IllegalArgumentException("Empty range " + minDb + ".." + maxDb);
+        }
+        mMinDb = minDb;
+        mEagle = new int[maxDb - minDb + 1];
+        for (int i = 0; i < mEagle.length; i++) {
+            mEagle[i] = DtsGain.toEagleGain(minDb + i);
+        }
+    }
+
+    public int toEagleGain(int db) {
+        int i = db - mMinDb;
+        return i >= 0 && i < mEagle.length ? mEagle[i] : DtsGain.toEagleGain(db);
+    }
+
+    /** Converts all bands of db into out, which must be at least as long. */
+    public void toEagleGains(int[] db, int[] out) {
+        for (int i = 0; i < db.length; i++) {
+            out[i] = toEagleGain(db[i]);
+        }
+    }
+
+    public int toDb(int gain) {
+        /* The table is ascending since the conversion is monotonic */
+        int i = Arrays.binarySearch(mEagle, gain);
+        return i >= 0 ? mMinDb + i : DtsGain.toDb(gain);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size, lock-free latency histogram with power of two nanosecond buckets,
+ * cheap enough to record on every call. Percentiles are reported as the upper
+ * bound of their bucket, so they are within a factor of two.
+ */
+final class LatencyHistogram {
+    private static final int BUCKETS = 64;
+
+    private final String mName;
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotalNs = new AtomicLong();
+    private final AtomicLong mMaxNs = new AtomicLong();
+
+    LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public void record(long ns) {
+        if (ns < 0) {
+            ns = 0;
+        }
+        mCounts.incrementAndGet(63 - Long.numberOfLeadingZeros(ns | 1));
+        mCount.incrementAndGet();
+        mTotalNs.addAndGet(ns);
+        if (ns > mMaxNs.get()) {
+            mMaxNs.accumulateAndGet(ns, Math::max);
+        }
+    }
+
+    /** Records the time elapsed since startNs, in {@link System#nanoTime()} terms. */
+    public void recordSince(long startNs) {
+        record(System.nanoTime() - startNs);
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * Returns the upper bound in ns below which the given fraction of samples fall.
+     * Samples recorded meanwhile may or may not be included.
+     */
+    public long getPercentileNs(double fraction) {
+        long count = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mCounts.get(i);
+            count += counts[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long max = mMaxNs.get();
+        long target = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return i == BUCKETS - 1 ? max : Math.min(1L << (i + 1), max);
+            }
+        }
+        return max;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mTotalNs.set(0);
+        mMaxNs.set(0);
+    }
+
+    @Override
+    public String toString() {
+        long count = mCount.get();
+        return mName + ": n=" + count
+                + " mean=" + micros(count == 0 ? 0 : mTotalNs.get() / count)
+                + " p50=" + micros(getPercentileNs(0.5))
+                + " p99=" + micros(getPercentileNs(0.99))
+                + " max=" + micros(mMaxNs.get());
+    }
+
+    private static String micros(long ns) {
+        return TimeUnit.NANOSECONDS.toMicros(ns) + "us";
+    }
+}
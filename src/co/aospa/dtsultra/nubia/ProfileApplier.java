@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+/**
+ * The effect side of applying state: writes go out in transactions through the
+ * effect's cache, what went through is journaled, and the applied profile is
+ * fingerprinted so audio events that change nothing skip the effect. Needs no
+ * Context, so host tools run the same sequence as the app.
+ *
+ * Only used from the effect thread.
+ */
+final class ProfileApplier {
+    private final ApplyJournal mJournal;
+    private final ProfileFingerprint mFingerprint = new ProfileFingerprint();
+
+    ProfileApplier(ApplyJournal journal) {
+        mJournal = journal;
+    }
+
+    /** Writes the journaled state to a fresh effect, returning it or null if empty. */
+    public DtsAudio.Transaction replayJournal(DtsAudio audio) {
+        return mJournal.replay(audio);
+    }
+
+    /** Turns DTS on or off, skipped if the cache shows it already is. Returns the new state. */
+    public boolean setDtsOn(DtsAudio audio, boolean on) {
+        audio.beginTransaction().setDtsOn(on).commit();
+        /* Read back from the cache, which is only updated if the write went through */
+        final boolean applied = audio.getDtsOn();
+        if (applied == on) {
+            mJournal.recordEnabled(on);
+        }
+        return applied;
+    }
+
+    /**
+     * Whether the profile was applied to this effect for the output already.
+     *
+     * @param customDb custom EQ in dB, or null when the gains follow from the preset
+     */
+    public boolean isApplied(DtsAudio audio, int deviceType, int route, int profile, int preset,
+            int[] customDb) {
+        return mFingerprint.matches(audio.getCacheGeneration(), deviceType, route, profile,
+                preset, customDb);
+    }
+
+    /**
+     * Writes the profile, and the Eagle gains for it on route if not null, in one
+     * transaction. It is journaled and fingerprinted only if all of it went through.
+     *
+     * @param customDb as for {@link #isApplied}
+     */
+    public DtsAudio.Transaction apply(DtsAudio audio, int deviceType, int route, int profile,
+            int preset, int[] customDb, int[] gains) {
+        DtsAudio.Transaction tx = audio.beginTransaction().setProfile(profile);
+        if (gains != null) {
+            tx.setAllEqGains(route, profile, gains);
+        }
+        if (!tx.commit().isSuccessful()) {
+            mFingerprint.invalidate();
+            return tx;
+        }
+        mJournal.recordProfile(profile, route, gains);
+        mFingerprint.set(audio.getCacheGeneration(), deviceType, route, profile, preset, customDb);
+        return tx;
+    }
+
+    /** Writes a custom EQ for the profile the effect is on, leaving the rest as is. */
+    public int applyEq(DtsAudio audio, int route, int[] gains) {
+        int profile = audio.getProfile();
+        if (profile < 0) {
+            return profile;
+        }
+        return audio.setAllEqGains(route, profile, gains);
+    }
+
+    /** Makes the next profile apply go to the effect, whatever it is. */
+    public void invalidate() {
+        mFingerprint.invalidate();
+    }
+}
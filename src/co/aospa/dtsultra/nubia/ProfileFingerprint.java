@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+import java.util.Arrays;
+
+/**
+ * What was last applied to the effect for the current output, so audio events
+ * that would not change anything can skip touching it.
+ */
+final class ProfileFingerprint {
+    private boolean mValid = false;
+    private int mGeneration;
+    private int mDeviceType;
+    private int mRoute;
+    private int mProfile;
+    private int mPreset;
+    private boolean mHasGains;
+    private final int[] mGains = new int[DtsConstants.EQ_BAND_COUNT];
+
+    /**
+     * @param generation cache generation of the effect the state was applied to
+     * @param gains custom EQ gains, or null when they follow from the preset
+     */
+    public boolean matches(int generation, int deviceType, int route, int profile, int preset,
+            int[] gains) {
+        return mValid
+                && mGeneration == generation
+                && mDeviceType == deviceType
+                && mRoute == route
+                && mProfile == profile
+                && mPreset == preset
+                && (gains == null ? !mHasGains : mHasGains && Arrays.equals(mGains, gains));
+    }
+
+    public void set(int generation, int deviceType, int route, int profile, int preset,
+            int[] gains) {
+        mGeneration = generation;
+        mDeviceType = deviceType;
+        mRoute = route;
+        mProfile = profile;
+        mPreset = preset;
+        mHasGains = gains != null && gains.length == mGains.length;
+        if (mHasGains) {
+            System.arraycopy(gains, 0, mGains, 0, mGains.length);
+        }
+        mValid = true;
+    }
+
+    public void invalidate() {
+        mValid = false;
+    }
+
+    @Override
+    public String toString() {
+        return mValid ? "device=" + mDeviceType + " route=" + mRoute + " profile=" + mProfile
+                + " preset=" + mPreset + " gains=" + (mHasGains ? Arrays.toString(mGains) : "preset")
+                : "invalid";
+    }
+}
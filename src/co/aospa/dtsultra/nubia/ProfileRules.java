@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+import java.util.Map;
+
+import android.content.pm.PackageManager;
+import android.media.AudioAttributes;
+import android.util.Log;
+import android.util.SparseIntArray;
+
+/**
+ * Per-app profile rules compiled into a UID lookup, so matching a player is a
+ * single sparse array search instead of a package manager query.
+ */
+final class ProfileRules {
+    private static final String TAG = "ProfileRules";
+
+    static final ProfileRules EMPTY = new ProfileRules(new SparseIntArray());
+
+    private final SparseIntArray mUidProfiles;
+
+    private ProfileRules(SparseIntArray uidProfiles) {
+        mUidProfiles = uidProfiles;
+    }
+
+    /** Resolves the package names of the saved rules, skipping uninstalled ones. */
+    static ProfileRules compile(Map<String, Integer> appProfiles, PackageManager pm) {
+        if (appProfiles.isEmpty()) {
+            return EMPTY;
+        }
+        SparseIntArray uidProfiles = new SparseIntArray(appProfiles.size());
+        for (Map.Entry<String, Integer> rule : appProfiles.entrySet()) {
+            try {
+                uidProfiles.put(pm.getPackageUid(rule.getKey(), 0), rule.getValue());
+            } catch (PackageManager.NameNotFoundException e) {
+                Log.w(TAG, "Ignoring rule for missing package " + rule.getKey());
+            }
+        }
+        return new ProfileRules(uidProfiles);
+    }
+
+    /** Returns the profile the app has a rule for, or -1. */
+    public int matchUid(int uid) {
+        return mUidProfiles.get(uid, -1);
+    }
+
+    /** Returns the profile that suits the given attributes, or -1. */
+    static int profileFor(AudioAttributes attributes) {
+        if (attributes == null) {
+            return -1;
+        }
+        if (attributes.getUsage() == AudioAttributes.USAGE_GAME) {
+            return DtsConstants.PROFILE_GAME;
+        }
+        return switch (attributes.getContentType()) {
+            case AudioAttributes.CONTENT_TYPE_MOVIE -> DtsConstants.PROFILE_MOVIE;
+            case AudioAttributes.CONTENT_TYPE_MUSIC -> DtsConstants.PROFILE_MUSIC;
+            default -> -1;
+        };
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+import java.util.List;
+
+import android.annotation.SuppressLint;
+import android.content.res.Resources;
+import android.media.AudioAttributes;
+import android.media.AudioDeviceAttributes;
+import android.media.AudioDeviceCallback;
+import android.media.AudioDeviceInfo;
+import android.media.AudioManager;
+import android.os.Handler;
+import android.util.Log;
+import android.util.SparseIntArray;
+
+import co.aospa.dtsultra.nubia.DtsConstants.AudioRoute;
+
+import static android.media.AudioDeviceInfo.TYPE_AUX_LINE;
+import static android.media.AudioDeviceInfo.TYPE_BLE_BROADCAST;
+import static android.media.AudioDeviceInfo.TYPE_BLE_HEADSET;
+import static android.media.AudioDeviceInfo.TYPE_BLE_SPEAKER;
+import static android.media.AudioDeviceInfo.TYPE_BLUETOOTH_A2DP;
+import static android.media.AudioDeviceInfo.TYPE_BLUETOOTH_SCO;
+import static android.media.AudioDeviceInfo.TYPE_BUILTIN_EARPIECE;
+import static android.media.AudioDeviceInfo.TYPE_BUILTIN_SPEAKER;
+import static android.media.AudioDeviceInfo.TYPE_BUILTIN_SPEAKER_SAFE;
+import static android.media.AudioDeviceInfo.TYPE_DOCK;
+import static android.media.AudioDeviceInfo.TYPE_DOCK_ANALOG;
+import static android.media.AudioDeviceInfo.TYPE_HDMI;
+import static android.media.AudioDeviceInfo.TYPE_HDMI_ARC;
+import static android.media.AudioDeviceInfo.TYPE_HDMI_EARC;
+import static android.media.AudioDeviceInfo.TYPE_HEARING_AID;
+import static android.media.AudioDeviceInfo.TYPE_LINE_ANALOG;
+import static android.media.AudioDeviceInfo.TYPE_LINE_DIGITAL;
+import static android.media.AudioDeviceInfo.TYPE_USB_ACCESSORY;
+import static android.media.AudioDeviceInfo.TYPE_USB_DEVICE;
+import static android.media.AudioDeviceInfo.TYPE_USB_HEADSET;
+import static android.media.AudioDeviceInfo.TYPE_WIRED_HEADPHONES;
+import static android.media.AudioDeviceInfo.TYPE_WIRED_HEADSET;
+
+/**
+ * Keeps the current media output and its DTS route in memory, so looking them up
+ * is a field read rather than a call into audio policy.
+ *
+ * Audio policy pushes the media devices whenever they change. Connected outputs
+ * are tracked from device callback deltas, which also cover the gap until that
+ * push arrives when outputs come and go. Nothing is tracked while stopped, the
+ * last known route is kept until the next start.
+ *
+ * Only used from the effect thread.
+ */
+final class RouteResolver {
+    private static final String TAG = "RouteResolver";
+
+    private static final AudioAttributes ATTRIBUTES_MEDIA = new AudioAttributes.Builder()
+            .setUsage(AudioAttributes.USAGE_MEDIA)
+            .build();
+
+    /* Most preferred media output first, roughly what audio policy does */
+    private static final int[] MEDIA_PRIORITY = {
+        TYPE_HEARING_AID,
+        TYPE_BLUETOOTH_A2DP, TYPE_BLE_HEADSET, TYPE_BLE_SPEAKER, TYPE_BLE_BROADCAST,
+        TYPE_WIRED_HEADPHONES, TYPE_LINE_ANALOG, TYPE_WIRED_HEADSET,
+        TYPE_USB_HEADSET, TYPE_USB_ACCESSORY, TYPE_USB_DEVICE,
+        TYPE_DOCK, TYPE_HDMI, TYPE_HDMI_EARC, TYPE_HDMI_ARC, TYPE_LINE_DIGITAL, TYPE_AUX_LINE,
+        TYPE_DOCK_ANALOG,
+        TYPE_BUILTIN_SPEAKER,
+    };
+
+    interface Listener {
+        void onRouteChanged(int deviceType, AudioRoute route);
+    }
+
+    private final AudioManager mAudioManager;
+    private final Handler mHandler;
+    private final RouteTable mTable;
+    private final Listener mListener;
+    /* Connected output devices, id to type */
+    private final SparseIntArray mOutputs = new SparseIntArray();
+
+    private int mDeviceType = TYPE_BUILTIN_SPEAKER;
+    private AudioRoute mRoute;
+    private boolean mStarted = false;
+    private long mPolicyUpdates = 0;
+    private long mDeltaUpdates = 0;
+
+    private final AudioManager.OnDevicesForAttributesChangedListener mPolicyListener =
+            (attributes, devices) -> {
+                mPolicyUpdates++;
+                onMediaDevices(devices);
+            };
+
+    private final AudioDeviceCallback mDeviceCallback = new AudioDeviceCallback() {
+        @Override
+        public void onAudioDevicesAdded(AudioDeviceInfo[] addedDevices) {
+            int best = -1;
+            for (AudioDeviceInfo device : addedDevices) {
+                if (addOutput(device) && priority(device.getType()) < priority(best)) {
+                    best = device.getType();
+                }
+            }
+            /* Plugging in something media prefers moves it there */
+            if (best >= 0 && priority(best) < priority(mDeviceType)) {
+                guessDevice(best);
+            }
+        }
+
+        @Override
+        public void onAudioDevicesRemoved(AudioDeviceInfo[] removedDevices) {
+            for (AudioDeviceInfo device : removedDevices) {
+                mOutputs.delete(device.getId());
+            }
+            if (isConnected(mDeviceType)) {
+                return;
+            }
+            /* Media falls back to the most preferred output left */
+            for (int type : MEDIA_PRIORITY) {
+                if (isConnected(type)) {
+                    guessDevice(type);
+                    return;
+                }
+            }
+            guessDevice(TYPE_BUILTIN_SPEAKER);
+        }
+    };
+
+    RouteResolver(AudioManager audioManager, Handler handler, RouteTable table,
+            Listener listener) {
+        mAudioManager = audioManager;
+        mHandler = handler;
+        mTable = table;
+        mListener = listener;
+        mRoute = table.get(mDeviceType);
+    }
+
+    /**
+     * Returns the built-in device type to route mapping, with the device overlay
+     * dtsultra_route_overrides ("type=ROUTE" items) applied on top.
+     */
+    static RouteTable buildTable(Resources res) {
+        RouteTable table = new RouteTable()
+                .put(AudioRoute.INTERNAL_SPEAKERS, TYPE_BUILTIN_EARPIECE, TYPE_BUILTIN_SPEAKER,
+                        TYPE_BUILTIN_SPEAKER_SAFE)
+                .put(AudioRoute.LINE_OUT, TYPE_WIRED_HEADSET, TYPE_WIRED_HEADPHONES,
+                        TYPE_LINE_ANALOG, TYPE_LINE_DIGITAL, TYPE_AUX_LINE, TYPE_HDMI,
+                        TYPE_HDMI_ARC, TYPE_HDMI_EARC, TYPE_DOCK, TYPE_DOCK_ANALOG)
+                .put(AudioRoute.BLUETOOTH, TYPE_BLUETOOTH_A2DP, TYPE_BLUETOOTH_SCO,
+                        TYPE_BLE_HEADSET, TYPE_BLE_SPEAKER, TYPE_BLE_BROADCAST, TYPE_HEARING_AID)
+                .put(AudioRoute.USB, TYPE_USB_HEADSET, TYPE_USB_DEVICE, TYPE_USB_ACCESSORY);
+        for (String item : res.getStringArray(R.array.dtsultra_route_overrides)) {
+            int split = item.indexOf('=');
+            try {
+                table.put(AudioRoute.valueOf(item.substring(split + 1).trim()),
+                        Integer.parseInt(item.substring(0, Math.max(split, 0)).trim()));
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Ignoring invalid route override: " + item);
+            }
+        }
+        return table;
+    }
+
+    /** Starts tracking, with a single query for the current state. */
+    @SuppressLint("MissingPermission")
+    public void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        mOutputs.clear();
+        mAudioManager.addOnDevicesForAttributesChangedListener(ATTRIBUTES_MEDIA,
+                mHandler::post, mPolicyListener);
+        /* Also reported once registered, but those are known by then and change nothing */
+        for (AudioDeviceInfo device : mAudioManager.getDevices(AudioManager.GET_DEVICES_OUTPUTS)) {
+            addOutput(device);
+        }
+        mAudioManager.registerAudioDeviceCallback(mDeviceCallback, mHandler);
+        onMediaDevices(mAudioManager.getDevicesForAttributes(ATTRIBUTES_MEDIA));
+    }
+
+    public void stop() {
+        if (!mStarted) {
+            return;
+        }
+        mAudioManager.removeOnDevicesForAttributesChangedListener(mPolicyListener);
+        mAudioManager.unregisterAudioDeviceCallback(mDeviceCallback);
+        mStarted = false;
+    }
+
+    public int getDeviceType() {
+        return mDeviceType;
+    }
+
+    public AudioRoute getRoute() {
+        return mRoute;
+    }
+
+    /** Number of route updates pushed by audio policy and taken from device deltas. */
+    public long getPolicyUpdateCount() {
+        return mPolicyUpdates;
+    }
+
+    public long getDeltaUpdateCount() {
+        return mDeltaUpdates;
+    }
+
+    private void onMediaDevices(List<AudioDeviceAttributes> devices) {
+        if (devices == null) {
+            return;
+        }
+        for (AudioDeviceAttributes device : devices) {
+            if (device.getRole() == AudioDeviceAttributes.ROLE_OUTPUT) {
+                setDevice(device.getType());
+                return;
+            }
+        }
+    }
+
+    /* Returns whether the device is an output that was not known yet */
+    private boolean addOutput(AudioDeviceInfo device) {
+        if (!device.isSink() || mOutputs.indexOfKey(device.getId()) >= 0) {
+            return false;
+        }
+        mOutputs.put(device.getId(), device.getType());
+        return true;
+    }
+
+    private boolean isConnected(int type) {
+        return mOutputs.indexOfValue(type) >= 0;
+    }
+
+    /* Lower is more preferred, anything media does not go to on its own is last */
+    private static int priority(int type) {
+        for (int i = 0; i < MEDIA_PRIORITY.length; i++) {
+            if (MEDIA_PRIORITY[i] == type) {
+                return i;
+            }
+        }
+        return MEDIA_PRIORITY.length;
+    }
+
+    /*
+     * Audio policy reports the real media devices too, but only once it has
+     * rerouted, so follow device deltas right away and let that correct us.
+     */
+    private void guessDevice(int type) {
+        mDeltaUpdates++;
+        setDevice(type);
+    }
+
+    private void setDevice(int type) {
+        if (type == mDeviceType) {
+            return;
+        }
+        final AudioRoute route = mTable.get(type);
+        dlog("media output: " + mDeviceType + " -> " + type + ", route " + route);
+        mDeviceType = type;
+        mRoute = route;
+        mListener.onRouteChanged(type, route);
+    }
+
+    private static void dlog(String msg) {
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, msg);
+        }
+    }
+}
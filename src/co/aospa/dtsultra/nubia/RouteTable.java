@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+import java.util.Arrays;
+
+import co.aospa.dtsultra.nubia.DtsConstants.AudioRoute;
+
+/**
+ * Maps audio device types to the DTS audio route tuned for them. Device types
+ * are small integers, so lookups are a plain array access.
+ */
+final class RouteTable {
+    private AudioRoute[] mRoutes = new AudioRoute[0];
+
+    public RouteTable put(AudioRoute route, int... types) {
+        for (int type : types) {
+            if (type < 0) {
+                throw new IllegalArgumentException("Invalid device type " + type);
+            }
+            if (type >= mRoutes.length) {
+                mRoutes = Arrays.copyOf(mRoutes, type + 1);
+            }
+            mRoutes[type] = route;
+        }
+        return this;
+    }
+
+    public AudioRoute get(int type) {
+        AudioRoute route = type >= 0 && type < mRoutes.length ? mRoutes[type] : null;
+        return route != null ? route : AudioRoute.UNKNOWN;
+    }
+}
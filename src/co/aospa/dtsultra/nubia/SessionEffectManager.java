@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+import java.util.List;
+
+import android.media.AudioPlaybackConfiguration;
+import android.media.audiofx.AudioEffect;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * Attaches a DTS instance to each playing audio session, with the profile that
+ * suits its content and the user's preset or custom EQ for it.
+ *
+ * The engine would process a session twice with both its own instance and the
+ * global one in the chain, so the global effect is bypassed through the callback
+ * for as long as any instance is attached. Sessions over the cap play without
+ * DTS meanwhile.
+ *
+ * The number of live instances is capped, the least recently active idle one is
+ * evicted to make room, and sessions that stay idle are released after a while.
+ * Instances are written through their transaction cache, so only changes go out.
+ *
+ * Only used from the effect thread.
+ */
+final class SessionEffectManager {
+    private static final String TAG = "SessionEffectManager";
+
+    private static final long IDLE_RELEASE_MS = 30_000;
+
+    interface Callback {
+        /** Returns the profile for content that doesn't suit a particular one. */
+        int getDefaultProfile();
+
+        /** Returns the route curves are written for. */
+        int getRoute();
+
+        /** Returns the Eagle gains for profile on route with the user's preset, or null. */
+        int[] getGains(int route, int profile);
+
+        /** Called when the first instance is attached, and when the last is released. */
+        void onAttachedChanged(boolean attached);
+    }
+
+    private static final class Session {
+        final int id;
+        final DtsAudio audio;
+        int profile;
+        boolean playing;
+        long lastActive;
+        long seenPass;
+
+        Session(int id, DtsAudio audio, int profile) {
+            this.id = id;
+            this.audio = audio;
+            this.profile = profile;
+        }
+    }
+
+    private final Handler mHandler;
+    private final int mPriority;
+    private final int mMaxSessions;
+    private final Callback mCallback;
+    private final SparseArray<Session> mSessions = new SparseArray<>();
+    private final Runnable mReleaseIdle = this::releaseIdle;
+    private long mPass = 0;
+
+    /* Statistics, written on the effect thread only */
+    private volatile long mAttaches = 0;
+    private volatile long mReleases = 0;
+    private volatile long mRejected = 0;
+
+    SessionEffectManager(Handler handler, int priority, int maxSessions, Callback callback) {
+        mHandler = handler;
+        mPriority = priority;
+        mMaxSessions = maxSessions;
+        mCallback = callback;
+    }
+
+    /** Handles ACTION_OPEN_AUDIO_EFFECT_CONTROL_SESSION, content type as in AudioEffect. */
+    public void onSessionOpened(int sessionId, int contentType) {
+        int profile = switch (contentType) {
+            case AudioEffect.CONTENT_TYPE_MUSIC -> DtsConstants.PROFILE_MUSIC;
+            case AudioEffect.CONTENT_TYPE_MOVIE -> DtsConstants.PROFILE_MOVIE;
+            case AudioEffect.CONTENT_TYPE_GAME -> DtsConstants.PROFILE_GAME;
+            default -> mCallback.getDefaultProfile();
+        };
+        dlog("onSessionOpened: " + sessionId + " profile=" + profile);
+        if (sessionId > 0) {
+            Session session = attach(sessionId, profile);
+            if (session != null) {
+                session.lastActive = SystemClock.elapsedRealtime();
+                scheduleIdleRelease();
+            }
+        }
+    }
+
+    /** Handles ACTION_CLOSE_AUDIO_EFFECT_CONTROL_SESSION. */
+    public void onSessionClosed(int sessionId) {
+        dlog("onSessionClosed: " + sessionId);
+        Session session = mSessions.get(sessionId);
+        if (session != null) {
+            release(session);
+        }
+    }
+
+    public void onPlaybackConfigChanged(List<AudioPlaybackConfiguration> configs) {
+        final long now = SystemClock.elapsedRealtime();
+        final long pass = ++mPass;
+        for (int i = 0; i < configs.size(); i++) {
+            AudioPlaybackConfiguration config = configs.get(i);
+            if (config.getPlayerState() != AudioPlaybackConfiguration.PLAYER_STATE_STARTED) {
+                continue;
+            }
+            int sessionId = config.getSessionId();
+            if (sessionId <= 0) {
+                continue;
+            }
+            int profile = ProfileRules.profileFor(config.getAudioAttributes());
+            if (profile < 0) {
+                profile = mCallback.getDefaultProfile();
+            }
+            Session session = mSessions.get(sessionId);
+            if (session == null) {
+                session = attach(sessionId, profile);
+            } else if (session.profile != profile) {
+                session.profile = profile;
+                apply(session);
+            }
+            if (session != null) {
+                session.playing = true;
+                session.lastActive = now;
+                session.seenPass = pass;
+            }
+        }
+        for (int i = 0; i < mSessions.size(); i++) {
+            Session session = mSessions.valueAt(i);
+            if (session.seenPass != pass) {
+                session.playing = false;
+            }
+        }
+        scheduleIdleRelease();
+    }
+
+    /** Writes the user's current settings to every attached instance. */
+    public void applyAll() {
+        for (int i = 0; i < mSessions.size(); i++) {
+            apply(mSessions.valueAt(i));
+        }
+    }
+
+    public void releaseAll() {
+        mHandler.removeCallbacks(mReleaseIdle);
+        while (mSessions.size() > 0) {
+            release(mSessions.valueAt(mSessions.size() - 1));
+        }
+    }
+
+    public int getLiveCount() {
+        return mSessions.size();
+    }
+
+    public long getAttachCount() {
+        return mAttaches;
+    }
+
+    public long getReleaseCount() {
+        return mReleases;
+    }
+
+    /** Number of sessions left to the global effect because the cap was reached. */
+    public long getRejectedCount() {
+        return mRejected;
+    }
+
+    private Session attach(int sessionId, int profile) {
+        Session session = mSessions.get(sessionId);
+        if (session != null) {
+            return session;
+        }
+        if (mSessions.size() >= mMaxSessions && !evictIdle()) {
+            mRejected++;
+            dlog("attach " + sessionId + ": cap of " + mMaxSessions + " reached");
+            return null;
+        }
+
+        final DtsAudio audio;
+        try {
+            audio = new DtsAudio(mPriority, sessionId);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to attach to session " + sessionId, e);
+            return null;
+        }
+        session = new Session(sessionId, audio, profile);
+        mSessions.put(sessionId, session);
+        mAttaches++;
+        if (mSessions.size() == 1) {
+            mCallback.onAttachedChanged(true);
+        }
+        apply(session);
+        return session;
+    }
+
+    private void apply(Session session) {
+        final int route = mCallback.getRoute();
+        final int[] gains = mCallback.getGains(route, session.profile);
+        DtsAudio.Transaction tx = session.audio.beginTransaction()
+                .setDtsOn(true)
+                .setProfile(session.profile);
+        if (gains != null) {
+            tx.setAllEqGains(route, session.profile, gains);
+        }
+        tx.commit();
+        dlog("session " + session.id + ": " + tx);
+    }
+
+    /* Makes room by releasing the least recently active idle session */
+    private boolean evictIdle() {
+        Session oldest = null;
+        for (int i = 0; i < mSessions.size(); i++) {
+            Session session = mSessions.valueAt(i);
+            if (!session.playing && (oldest == null || session.lastActive < oldest.lastActive)) {
+                oldest = session;
+            }
+        }
+        if (oldest == null) {
+            return false;
+        }
+        release(oldest);
+        return true;
+    }
+
+    private void release(Session session) {
+        mSessions.delete(session.id);
+        session.audio.release();
+        mReleases++;
+        if (mSessions.size() == 0) {
+            mCallback.onAttachedChanged(false);
+        }
+        dlog("released session " + session.id + ", " + mSessions.size() + " live");
+    }
+
+    private void scheduleIdleRelease() {
+        if (mSessions.size() > 0 && !mHandler.hasCallbacks(mReleaseIdle)) {
+            mHandler.postDelayed(mReleaseIdle, IDLE_RELEASE_MS);
+        }
+    }
+
+    private void releaseIdle() {
+        final long cutoff = SystemClock.elapsedRealtime() - IDLE_RELEASE_MS;
+        for (int i = mSessions.size() - 1; i >= 0; i--) {
+            Session session = mSessions.valueAt(i);
+            if (!session.playing && session.lastActive <= cutoff) {
+                release(session);
+            }
+        }
+        scheduleIdleRelease();
+    }
+
+    private static void dlog(String msg) {
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, msg);
+        }
+    }
+}
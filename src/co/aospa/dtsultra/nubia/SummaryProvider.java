@@ -72,12 +72,12 @@ public class SummaryProvider extends ContentProvider {
     }
 
     private String getDtsUltraSummary() {
-        final DtsUtils dtsUtils = DtsUtils.getInstance(getContext());
-        if (!dtsUtils.getDtsOn()) {
+        final DtsState state = DtsUtils.getInstance(getContext()).getState();
+        if (!state.isOn()) {
             return getContext().getString(R.string.dtsultra_off);
         }
-        final String profileName = dtsUtils.getProfileName();
-        final String presetName = dtsUtils.getPresetName();
+        final String profileName = state.getProfileName();
+        final String presetName = state.getPresetName();
         if (profileName == null) {
             return getContext().getString(R.string.dtsultra_on);
         } else if (presetName == null) {
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import co.aospa.dtsultra.nubia.DtsConstants.DtsSystemComm;
+
+/**
+ * Opt-in ring buffer of the last effect parameter calls: command, payload,
+ * return code, start time, duration and calling thread. Recording only copies
+ * into preallocated arrays, older calls are overwritten once it is full.
+ *
+ * Traces are written with {@link #writeTo} and read back with {@link #read}.
+ * File layout, big endian header followed by varints (signed ones zigzag):
+ * <pre>
+ *   int magic, byte version, varint count, varint dropped
+ *   count times:
+ *     varint command << 1 | is get, svarint start delta ns, varint duration ns,
+ *     varint thread, svarint return, varint payload size, svarint[] payload
+ * </pre>
+ * Payloads longer than {@link #MAX_PAYLOAD} ints keep their size but are cut.
+ */
+final class TrafficRecorder {
+    private static final int MAGIC = 0x44545452 /* DTTR */;
+    private static final int VERSION = 1;
+    static final int MAX_PAYLOAD = 12;
+
+    private static volatile TrafficRecorder sInstance;
+
+    /** One recorded call, as read back from a trace. */
+    static final class Record {
+        public DtsSystemComm command;
+        public boolean get;
+        public long startNs;
+        public long durationNs;
+        public long thread;
+        public int ret;
+        /* Set value for writes, request data for reads */
+        public int[] payload;
+
+        @Override
+        public String toString() {
+            return (get ? "get " : "set ") + command + " " + Arrays.toString(payload)
+                    + " = " + (ret < 0 ? DtsConstants.effectStatusName(ret) : ret) + " in " + durationNs + "ns";
+        }
+    }
+
+    private final int mCapacity;
+    private final int[] mCommand;
+    private final long[] mStart;
+    private final int[] mDuration;
+    private final long[] mThread;
+    private final int[] mRet;
+    private final int[] mPayloadSize;
+    private final int[] mPayload;
+    private int mNext = 0;
+    private long mTotal = 0;
+
+    TrafficRecorder(int capacity) {
+        mCapacity = capacity;
+        mCommand = new int[capacity];
+        mStart = new long[capacity];
+        mDuration = new int[capacity];
+        mThread = new long[capacity];
+        mRet = new int[capacity];
+        mPayloadSize = new int[capacity];
+        mPayload = new int[capacity * MAX_PAYLOAD];
+    }
+
+    /** Returns the process wide recorder, or null if recording is off. */
+    static TrafficRecorder getInstance() {
+        return sInstance;
+    }
+
+    /** Turns recording on for effects created from now on. */
+    static synchronized TrafficRecorder enable(int capacity) {
+        if (sInstance == null) {
+            sInstance = new TrafficRecorder(capacity);
+        }
+        return sInstance;
+    }
+
+    /** Records a write of value, which holds native ordered ints. */
+    public void recordSet(DtsSystemComm param, ByteBuffer value, long startNs, long ns, int ret) {
+        final int ints = value.capacity() / 4;
+        synchronized (this) {
+            final int slot = begin(param, false, startNs, ns, ret, ints);
+            final int base = slot * MAX_PAYLOAD;
+            for (int i = 0; i < Math.min(ints, MAX_PAYLOAD); i++) {
+                mPayload[base + i] = value.getInt(i * 4);
+            }
+        }
+    }
+
+    /** Records a read with the given request data, if any. */
+    public void recordGet(DtsSystemComm param, int[] data, long startNs, long ns, int ret) {
+        final int ints = data != null ? data.length : 0;
+        synchronized (this) {
+            final int slot = begin(param, true, startNs, ns, ret, ints);
+            if (ints > 0) {
+                System.arraycopy(data, 0, mPayload, slot * MAX_PAYLOAD, Math.min(ints, MAX_PAYLOAD));
+            }
+        }
+    }
+
+    private int begin(DtsSystemComm param, boolean get, long startNs, long ns, int ret, int ints) {
+        final int slot = mNext;
+        mNext = slot + 1 == mCapacity ? 0 : slot + 1;
+        mTotal++;
+        mCommand[slot] = param.ordinal() << 1 | (get ? 1 : 0);
+        mStart[slot] = startNs;
+        mDuration[slot] = (int) Math.min(ns, Integer.MAX_VALUE);
+        mThread[slot] = Thread.currentThread().getId();
+        mRet[slot] = ret;
+        mPayloadSize[slot] = ints;
+        return slot;
+    }
+
+    /** Number of calls recorded since the start, including overwritten ones. */
+    public synchronized long getTotalCount() {
+        return mTotal;
+    }
+
+    public synchronized void clear() {
+        mNext = 0;
+        mTotal = 0;
+    }
+
+    /** Writes the buffered calls, oldest first. */
+    public void writeTo(OutputStream stream) throws IOException {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        final DtsSystemComm[] commands = DtsSystemComm.values();
+        synchronized (this) {
+            final int count = (int) Math.min(mTotal, mCapacity);
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            writeVarint(out, count);
+            writeVarint(out, mTotal - count);
+            int slot = mTotal > mCapacity ? mNext : 0;
+            long last = 0;
+            for (int n = 0; n < count; n++) {
+                final DtsSystemComm command = commands[mCommand[slot] >> 1];
+                writeVarint(out, (long) command.getNum() << 1 | (mCommand[slot] & 1));
+                writeSignedVarint(out, mStart[slot] - last);
+                last = mStart[slot];
+                writeVarint(out, mDuration[slot]);
+                writeVarint(out, mThread[slot]);
+                writeSignedVarint(out, mRet[slot]);
+                writeVarint(out, mPayloadSize[slot]);
+                final int base = slot * MAX_PAYLOAD;
+                for (int i = 0; i < Math.min(mPayloadSize[slot], MAX_PAYLOAD); i++) {
+                    writeSignedVarint(out, mPayload[base + i]);
+                }
+                slot = slot + 1 == mCapacity ? 0 : slot + 1;
+            }
+        }
+        out.flush();
+    }
+
+    /** Reads a trace written by {@link #writeTo}. */
+    static List<Record> read(InputStream stream) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+            throw new IOException("Not a DTS traffic trace");
+        }
+        final int count = (int) readVarint(in);
+        readVarint(in); // dropped
+        final List<Record> records = new ArrayList<>(count);
+        long start = 0;
+        for (int n = 0; n < count; n++) {
+            Record record = new Record();
+            long command = readVarint(in);
+            record.command = DtsSystemComm.fromNum((int) (command >> 1));
+            if (record.command == null) {
+                throw new IOException("Unknown command " + (command >> 1));
+            }
+            record.get = (command & 1) != 0;
+            start += readSignedVarint(in);
+            record.startNs = start;
+            record.durationNs = readVarint(in);
+            record.thread = readVarint(in);
+            record.ret = (int) readSignedVarint(in);
+            int size = (int) readVarint(in);
+            record.payload = new int[Math.min(size, MAX_PAYLOAD)];
+            for (int i = 0; i < record.payload.length; i++) {
+                record.payload[i] = (int) readSignedVarint(in);
+            }
+            records.add(record);
+        }
+        return records;
+    }
+
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static void writeSignedVarint(DataOutputStream out, long value) throws IOException {
+        writeVarint(out, (value << 1) ^ (value >> 63));
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static long readSignedVarint(DataInputStream in) throws IOException {
+        long value = readVarint(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
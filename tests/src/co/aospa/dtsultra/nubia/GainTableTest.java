@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2025 Paranoid Android
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package co.aospa.dtsultra.nubia;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link GainTable} against the {@link DtsGain} formulas it caches, over
+ * the slider range of res/values/dimens.xml and past both of its ends.
+ */
+public class GainTableTest {
+    private static final int MIN_DB = -12;
+    private static final int MAX_DB = 12;
+
+    private final GainTable mTable = new GainTable(MIN_DB, MAX_DB);
+
+    @Test
+    public void toEagleGain_matchesFormulaForEveryEntry() {
+        for (int db = MIN_DB; db <= MAX_DB; db++) {
+            assertEquals("dB " + db, DtsGain.toEagleGain(db), mTable.toEagleGain(db));
+        }
+    }
+
+    @Test
+    public void toEagleGain_fallsBackOutsideRange() {
+        int[] outside = {MIN_DB - 1, MAX_DB + 1, -96, 48, Integer.MIN_VALUE, Integer.MAX_VALUE};
+        for (int db : outside) {
+            assertEquals("dB " + db, DtsGain.toEagleGain(db), mTable.toEagleGain(db));
+        }
+    }
+
+    @Test
+    public void toEagleGain_unityAtZero() {
+        assertEquals(DtsGain.EAGLE_UNITY, mTable.toEagleGain(0));
+    }
+
+    @Test
+    public void toEagleGains_convertsEveryBand() {
+        int[] db = {MIN_DB - 1, MIN_DB, -6, -1, 0, 0, 1, 6, MAX_DB, MAX_DB + 1};
+        int[] expected = new int[db.length];
+        for (int i = 0; i < db.length; i++) {
+            expected[i] = DtsGain.toEagleGain(db[i]);
+        }
+        /* Longer than needed, the rest is left alone */
+        int[] out = new int[db.length + 1];
+        out[db.length] = 42;
+        mTable.toEagleGains(db, out);
+        assertArrayEquals(expected, Arrays.copyOf(out, db.length));
+        assertEquals(42, out[db.length]);
+    }
+
+    @Test
+    public void toDb_roundTripsEveryEntry() {
+        for (int db = MIN_DB; db <= MAX_DB; db++) {
+            int gain = DtsGain.toEagleGain(db);
+            assertEquals("dB " + db, db, mTable.toDb(gain));
+            assertEquals("dB " + db, DtsGain.toDb(gain), mTable.toDb(gain));
+        }
+    }
+
+    @Test
+    public void toDb_matchesFormulaForEveryGain() {
+        /* Every gain up to well past the top entry, table hits and misses alike */
+        int last = DtsGain.toEagleGain(MAX_DB + 6);
+        for (int gain = 0; gain <= last; gain++) {
+            assertEquals("gain " + gain, DtsGain.toDb(gain), mTable.toDb(gain));
+        }
+        for (int gain : new int[] {-1, Integer.MIN_VALUE, Integer.MAX_VALUE}) {
+            assertEquals("gain " + gain, DtsGain.toDb(gain), mTable.toDb(gain));
+        }
+    }
+
+    @Test
+    public void singleEntryTable() {
+        GainTable table = new GainTable(3, 3);
+        assertEquals(DtsGain.toEagleGain(3), table.toEagleGain(3));
+        assertEquals(DtsGain.toEagleGain(2), table.toEagleGain(2));
+        assertEquals(DtsGain.toEagleGain(4), table.toEagleGain(4));
+        assertEquals(3, table.toDb(DtsGain.toEagleGain(3)));
+    }
+
+    @Test
+    public void emptyRangeIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new GainTable(1, 0));
+    }
+}